@@ -0,0 +1,57 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import info.kgeorgiy.java.advanced.hello.HelloClient;
+import info.kgeorgiy.java.advanced.hello.HelloServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link HelloClient#run} against a {@link HelloUDPNonblockingServer} over loopback.
+ * One operation sends {@code threads * requests} requests.
+ *
+ * @author Boris Shaposhnikov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+    @Param({"HelloUDPClient", "HelloUDPNonblockingClient"})
+    public String client;
+
+    @Param({"1", "4", "16"})
+    public int threads;
+
+    @Param({"8", "256"})
+    public int prefixLength;
+
+    @Param({"100"})
+    public int requests;
+
+    private HelloServer server;
+    private HelloClient instance;
+    private int port;
+    private String prefix;
+
+    @Setup(Level.Trial)
+    public void start() {
+        port = Loopback.freePort();
+        server = new HelloUDPNonblockingServer();
+        server.start(port, Runtime.getRuntime().availableProcessors());
+        instance = Loopback.client(client);
+        prefix = Loopback.prefix(prefixLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        server.close();
+    }
+
+    @Benchmark
+    public void run() {
+        instance.run(Loopback.HOST, port, prefix, threads, requests);
+    }
+}
@@ -0,0 +1,80 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import info.kgeorgiy.java.advanced.hello.HelloClient;
+import info.kgeorgiy.java.advanced.hello.HelloServer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.DatagramSocket;
+
+/**
+ * Helpers for running benchmarked clients and servers over loopback.
+ *
+ * @author Boris Shaposhnikov
+ */
+final class Loopback {
+    /**
+     * Loopback host name.
+     */
+    static final String HOST = "localhost";
+
+    private Loopback() {
+    }
+
+    /**
+     * Finds a free UDP port.
+     *
+     * @return port number
+     */
+    static int freePort() {
+        try (final DatagramSocket socket = new DatagramSocket(0)) {
+            return socket.getLocalPort();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates a server by its simple class name.
+     *
+     * @param name {@code HelloUDPServer} or {@code HelloUDPNonblockingServer}
+     * @return new server
+     */
+    static HelloServer server(final String name) {
+        switch (name) {
+            case "HelloUDPServer":
+                return new HelloUDPServer();
+            case "HelloUDPNonblockingServer":
+                return new HelloUDPNonblockingServer();
+            default:
+                throw new IllegalArgumentException("Unknown server " + name);
+        }
+    }
+
+    /**
+     * Creates a client by its simple class name.
+     *
+     * @param name {@code HelloUDPClient} or {@code HelloUDPNonblockingClient}
+     * @return new client
+     */
+    static HelloClient client(final String name) {
+        switch (name) {
+            case "HelloUDPClient":
+                return new HelloUDPClient();
+            case "HelloUDPNonblockingClient":
+                return new HelloUDPNonblockingClient();
+            default:
+                throw new IllegalArgumentException("Unknown client " + name);
+        }
+    }
+
+    /**
+     * Returns a request prefix of the given length.
+     *
+     * @param length prefix length
+     * @return prefix
+     */
+    static String prefix(final int length) {
+        return "p".repeat(length);
+    }
+}
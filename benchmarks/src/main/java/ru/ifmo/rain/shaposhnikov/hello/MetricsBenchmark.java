@@ -0,0 +1,50 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of recording metrics on the datagram path. Run with {@code -t N} to measure contention.
+ *
+ * @author Boris Shaposhnikov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Latency varying per thread, so that different buckets are hit.
+     */
+    @State(Scope.Thread)
+    public static class Sample {
+        private long latency = 1000;
+
+        long next() {
+            latency = latency * 1103515245 + 12345 & 0xFFFFF;
+            return latency;
+        }
+    }
+
+    @Benchmark
+    public void received() {
+        metrics.received(64);
+    }
+
+    @Benchmark
+    public void latency(final Sample sample) {
+        metrics.latency(sample.next());
+    }
+
+    @Benchmark
+    public void datagram(final Sample sample) {
+        metrics.received(64);
+        metrics.sent(71);
+        metrics.latency(sample.next());
+    }
+}
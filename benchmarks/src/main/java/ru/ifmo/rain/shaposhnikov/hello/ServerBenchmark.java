@@ -0,0 +1,92 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import info.kgeorgiy.java.advanced.hello.HelloServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request-reply round trip through a server over loopback.
+ * Run with {@code -t N} to load the server from several client threads.
+ *
+ * @author Boris Shaposhnikov
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+    /**
+     * Server state shared by all benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"HelloUDPServer", "HelloUDPNonblockingServer"})
+        public String server;
+
+        @Param({"1", "4", "16"})
+        public int threads;
+
+        private HelloServer instance;
+        private int port;
+
+        @Setup(Level.Trial)
+        public void start() {
+            port = Loopback.freePort();
+            instance = Loopback.server(server);
+            instance.start(port, threads);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            instance.close();
+        }
+    }
+
+    /**
+     * Socket of one benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+        @Param({"16", "256", "1024"})
+        public int payload;
+
+        private DatagramSocket socket;
+        private DatagramPacket request;
+        private DatagramPacket response;
+
+        @Setup(Level.Trial)
+        public void open(final ServerState server) throws IOException {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(Util.TIMEOUT_MILLISECONDS);
+            socket.connect(new InetSocketAddress(Loopback.HOST, server.port));
+            final byte[] data = Loopback.prefix(payload).getBytes(Util.CHARSET);
+            request = new DatagramPacket(data, data.length);
+            response = new DatagramPacket(new byte[payload + 64], payload + 64);
+        }
+
+        @TearDown(Level.Trial)
+        public void close() {
+            socket.close();
+        }
+    }
+
+    @Benchmark
+    public int roundTrip(final ClientState client) throws IOException {
+        while (true) {
+            client.socket.send(client.request);
+            try {
+                client.socket.receive(client.response);
+                return client.response.getLength();
+            } catch (final SocketTimeoutException ignored) {
+                // the datagram was lost, send it again
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-datagram helpers used by clients and servers.
+ * {@code format} and {@code isRespond} are the string-based counterparts of {@code encode} and {@code respondedRequest},
+ * {@code encodeFrame} and {@code decodeFrame} are their binary counterparts.
+ *
+ * @author Boris Shaposhnikov
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UtilBenchmark {
+    @Param({"8", "256"})
+    public int prefixLength;
+
+    private String response;
+    private byte[] responseBytes;
+    private ByteBuffer buffer;
+    private Util.ExchangeDatagramPacket packet;
+    private String prefix;
+    private RequestCodec codec;
+    private ByteBuffer requestBuffer;
+    private ByteBuffer responseBuffer;
+    private RequestCodec binaryCodec;
+    private ByteBuffer frameBuffer;
+
+    @Setup
+    public void setup() {
+        response = "Hello, " + Loopback.prefix(prefixLength) + "12_345";
+        responseBytes = response.getBytes(Util.CHARSET);
+        buffer = ByteBuffer.allocate(responseBytes.length * 2);
+        packet = new Util.ExchangeDatagramPacket(responseBytes.length * 2);
+        prefix = Loopback.prefix(prefixLength);
+        codec = new RequestCodec(prefix);
+        requestBuffer = ByteBuffer.allocate(codec.maxLength());
+        responseBuffer = ByteBuffer.wrap(responseBytes);
+        binaryCodec = new RequestCodec(prefix, true);
+        frameBuffer = ByteBuffer.allocate(binaryCodec.maxLength() + 7);
+        BinaryFrame.putHeader(frameBuffer, 12, 345);
+        frameBuffer.put(("Hello, " + prefix).getBytes(Util.CHARSET)).flip();
+    }
+
+    @Benchmark
+    public String read() {
+        buffer.clear();
+        buffer.put(responseBytes);
+        return Util.read(buffer);
+    }
+
+    @Benchmark
+    public boolean isRespond() {
+        return Util.isRespond(response, 12, 345);
+    }
+
+    @Benchmark
+    public String exchangePacket() {
+        packet.setData(response);
+        final String data = packet.getData();
+        packet.clear();
+        return data;
+    }
+
+    @Benchmark
+    public byte[] format() {
+        return String.format("%s%d_%d", prefix, 12, 345).getBytes(Util.CHARSET);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        requestBuffer.clear();
+        codec.encode(requestBuffer, 12, 345);
+        return requestBuffer.flip();
+    }
+
+    @Benchmark
+    public int respondedRequest() {
+        return RequestCodec.respondedRequest(responseBuffer, 12);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() {
+        requestBuffer.clear();
+        binaryCodec.encode(requestBuffer, 12, 345);
+        return requestBuffer.flip();
+    }
+
+    @Benchmark
+    public int decodeFrame() {
+        return binaryCodec.decode(frameBuffer, 12);
+    }
+}
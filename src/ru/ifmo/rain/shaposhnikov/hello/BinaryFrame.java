@@ -0,0 +1,218 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary framing of requests and responses: {@link #MAGIC}, the thread and request numbers as unsigned
+ * variable-length integers (7 bits per byte, the high bit set on all bytes but the last), and the payload.
+ * A request carries the raw prefix, a response carries the reply to the prefix.
+ * <p>
+ * A batch packs several requests or responses into one datagram: {@link #BATCH}, the number of entries
+ * and the entries, every one prefixed by its length. Counts and lengths are written in a fixed number of bytes,
+ * so that they can be filled in after the entries. An entry is a text request or response or a frame.
+ * <p>
+ * The magic bytes never occur in UTF-8, so a server tells frames and batches from text requests by the first byte.
+ *
+ * @author Boris Shaposhnikov
+ * @see FramingHandler
+ */
+public final class BinaryFrame {
+    /**
+     * First byte of a frame.
+     */
+    public static final byte MAGIC = (byte) 0xFF;
+
+    /**
+     * First byte of a batch.
+     */
+    public static final byte BATCH = (byte) 0xFE;
+
+    /**
+     * Length of a datagram filling an Ethernet frame: the MTU without IPv4 and UDP headers.
+     */
+    public static final int MAX_BATCH_LENGTH = 1500 - 20 - 8;
+
+    /**
+     * Number of bytes the number of batch entries and the length of an entry take.
+     */
+    public static final int ENTRY_LENGTH_WIDTH = 3;
+
+    /**
+     * Length of a batch header.
+     */
+    public static final int BATCH_HEADER_LENGTH = 1 + ENTRY_LENGTH_WIDTH;
+
+    /**
+     * Maximal length of a variable-length {@code int}.
+     */
+    public static final int MAX_VARINT_LENGTH = 5;
+
+    /**
+     * Maximal length of a frame header.
+     */
+    public static final int MAX_HEADER_LENGTH = 1 + 2 * MAX_VARINT_LENGTH;
+
+    private BinaryFrame() {
+    }
+
+    /**
+     * Checks if the buffer holds a frame.
+     *
+     * @param buffer received datagram, not changed
+     * @return <var>true</var> if the byte at the position is {@link #MAGIC}
+     */
+    public static boolean isFrame(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Writes a frame header.
+     *
+     * @param buffer  where to write
+     * @param thread  thread number, non-negative
+     * @param request request number, non-negative
+     */
+    public static void putHeader(final ByteBuffer buffer, final int thread, final int request) {
+        buffer.put(MAGIC);
+        putVarint(buffer, thread);
+        putVarint(buffer, request);
+    }
+
+    /**
+     * Skips a frame header.
+     *
+     * @param buffer frame starting at the position, the position is moved to the payload
+     * @return <var>false</var> if the header is malformed
+     */
+    public static boolean skipHeader(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get() == MAGIC && getVarint(buffer) >= 0 && getVarint(buffer) >= 0;
+    }
+
+    /**
+     * Writes a non-negative {@code int} in the variable-length encoding.
+     *
+     * @param buffer where to write
+     * @param value  value to write
+     */
+    public static void putVarint(final ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads a non-negative {@code int} in the variable-length encoding.
+     *
+     * @param buffer where to read from, the position is moved past the value
+     * @return read value or {@code -1} if the encoding is truncated or does not fit into a non-negative {@code int}
+     */
+    public static int getVarint(final ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_LENGTH; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return shift == 7 * (MAX_VARINT_LENGTH - 1) && (b & 0x7F) > 0x07 ? -1 : value;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks if the buffer holds a batch.
+     *
+     * @param buffer received datagram, not changed
+     * @return <var>true</var> if the byte at the position is {@link #BATCH}
+     */
+    public static boolean isBatch(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) == BATCH;
+    }
+
+    /**
+     * Starts a batch at the position of the buffer, the count is written by {@link #finishBatch}.
+     *
+     * @param buffer where to write
+     * @return position of the batch
+     */
+    public static int startBatch(final ByteBuffer buffer) {
+        final int start = buffer.position();
+        buffer.put(BATCH).position(start + BATCH_HEADER_LENGTH);
+        return start;
+    }
+
+    /**
+     * Writes the number of entries of a batch.
+     *
+     * @param buffer buffer with the batch
+     * @param start  position returned by {@link #startBatch}
+     * @param count  number of entries
+     */
+    public static void finishBatch(final ByteBuffer buffer, final int start, final int count) {
+        putFixedVarint(buffer, start + 1, count, ENTRY_LENGTH_WIDTH);
+    }
+
+    /**
+     * Starts a batch entry at the position of the buffer, the entry follows and its length
+     * is written by {@link #finishEntry}.
+     *
+     * @param buffer where to write
+     * @return position of the entry
+     */
+    public static int startEntry(final ByteBuffer buffer) {
+        final int start = buffer.position();
+        buffer.position(start + ENTRY_LENGTH_WIDTH);
+        return start;
+    }
+
+    /**
+     * Writes the length of a batch entry ending at the position of the buffer.
+     *
+     * @param buffer buffer with the batch
+     * @param start  position returned by {@link #startEntry}
+     */
+    public static void finishEntry(final ByteBuffer buffer, final int start) {
+        putFixedVarint(buffer, start, buffer.position() - start - ENTRY_LENGTH_WIDTH, ENTRY_LENGTH_WIDTH);
+    }
+
+    /**
+     * Reads the header of a batch.
+     *
+     * @param buffer batch starting at the position, the position is moved to the first entry
+     * @return number of entries or {@code -1} if the header is malformed
+     */
+    public static int getBatchCount(final ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get() == BATCH ? getVarint(buffer) : -1;
+    }
+
+    /**
+     * Limits the buffer by the next batch entry.
+     *
+     * @param buffer batch positioned at an entry, its limit is set to the end of the entry
+     *               and its position to the start of the entry
+     * @return end of the entry or {@code -1} if the entry is malformed
+     */
+    public static int nextEntry(final ByteBuffer buffer) {
+        final int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            return -1;
+        }
+        final int end = buffer.position() + length;
+        buffer.limit(end);
+        return end;
+    }
+
+    private static void putFixedVarint(final ByteBuffer buffer, final int index, final int value, final int width) {
+        if (value >>> 7 * width != 0) {
+            throw new IllegalArgumentException("Value " + value + " does not fit into " + width + " bytes");
+        }
+        for (int i = 0; i < width; i++) {
+            final int bits = value >>> 7 * i & 0x7F;
+            buffer.put(index + i, (byte) (i < width - 1 ? bits | 0x80 : bits));
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct {@link ByteBuffer buffers} of one size, enough for a datagram.
+ * <p>
+ * Slots are carved out of large direct slabs, so a datagram needs a few kilobytes of native memory
+ * instead of a receive buffer sized heap array, and channels read and write it without an extra copy.
+ * Released slots are kept in a small cache of the releasing thread and then in a shared queue.
+ * <p>
+ * A {@link Slot} that becomes unreachable without {@link Slot#release() release} is reported as a leak
+ * and its memory is returned to the pool. The methods are thread-safe.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class BufferPool {
+    /**
+     * Default slot size: the Ethernet MTU. Can be changed with the {@code hello.buffer.size} system property.
+     */
+    public static final int DEFAULT_SLOT_SIZE = 1500;
+
+    /**
+     * Size of a slab all slots are carved from.
+     */
+    public static final int SLAB_SIZE = 256 * 1024;
+
+    private static final int CACHE_SIZE = 32;
+
+    private final int slotSize;
+    private final Queue<Slot> free = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<ArrayDeque<Slot>> cache = ThreadLocal.withInitial(ArrayDeque::new);
+    private final ReferenceQueue<Slot> collected = new ReferenceQueue<>();
+    private final Set<Tracker> trackers = ConcurrentHashMap.newKeySet();
+    private final LongAdder leaks = new LongAdder();
+    private long allocated;
+
+    /**
+     * Creates a pool.
+     *
+     * @param slotSize size of every buffer in bytes
+     */
+    public BufferPool(final int slotSize) {
+        if (slotSize <= 0) {
+            throw new IllegalArgumentException("Slot size must be a positive number");
+        }
+        this.slotSize = slotSize;
+    }
+
+    /**
+     * Returns the pool shared by clients and servers that were not given their own pool.
+     *
+     * @return pool with {@link #DEFAULT_SLOT_SIZE} slots unless {@code hello.buffer.size} is set
+     */
+    public static BufferPool getDefault() {
+        return DefaultHolder.POOL;
+    }
+
+    /**
+     * Returns the size of the buffers.
+     *
+     * @return capacity of every buffer in bytes
+     */
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * Takes a slot out of the pool. The buffer of the slot is cleared.
+     *
+     * @return slot that must be {@link Slot#release() released}
+     */
+    public Slot acquire() {
+        Slot slot = cache.get().poll();
+        if (slot == null) {
+            slot = newSlot();
+        }
+        slot.acquired.set(true);
+        slot.tracker.acquired = true;
+        slot.buffer.clear();
+        return slot;
+    }
+
+    private Slot newSlot() {
+        reclaim();
+        final Slot slot = free.poll();
+        return slot != null ? slot : allocateSlab();
+    }
+
+    private synchronized Slot allocateSlab() {
+        final Slot slot = free.poll();
+        if (slot != null) {
+            return slot;
+        }
+        final int slots = Math.max(1, SLAB_SIZE / slotSize);
+        final ByteBuffer slab = ByteBuffer.allocateDirect(slots * slotSize);
+        for (int i = 1; i < slots; i++) {
+            free.add(new Slot(slab.limit((i + 1) * slotSize).position(i * slotSize).slice()));
+        }
+        allocated += slab.capacity();
+        return new Slot(slab.limit(slotSize).position(0).slice());
+    }
+
+    private void reclaim() {
+        for (Reference<? extends Slot> reference = collected.poll(); reference != null; reference = collected.poll()) {
+            final Tracker tracker = (Tracker) reference;
+            trackers.remove(tracker);
+            if (tracker.acquired) {
+                leaks.increment();
+                Log.error("Buffer leak: a slot of " + slotSize + " bytes was not released");
+            }
+            free.add(new Slot(tracker.buffer));
+        }
+    }
+
+    private void release(final Slot slot) {
+        // only one of concurrent releases may return the slot, others would hand it out twice
+        if (!slot.acquired.compareAndSet(true, false)) {
+            throw new IllegalStateException("Slot is already released");
+        }
+        slot.tracker.acquired = false;
+        final ArrayDeque<Slot> local = cache.get();
+        if (local.size() < CACHE_SIZE) {
+            local.push(slot);
+        } else {
+            free.add(slot);
+        }
+    }
+
+    /**
+     * Returns the number of slots that were collected without being released.
+     *
+     * @return number of leaks detected so far
+     */
+    public long getLeaks() {
+        reclaim();
+        return leaks.sum();
+    }
+
+    /**
+     * Returns the amount of direct memory allocated for slabs.
+     *
+     * @return number of bytes
+     */
+    public synchronized long getAllocatedBytes() {
+        return allocated;
+    }
+
+    /**
+     * A buffer taken from the pool.
+     */
+    public final class Slot {
+        private final ByteBuffer buffer;
+        private final Tracker tracker;
+        private final AtomicBoolean acquired = new AtomicBoolean();
+
+        private Slot(final ByteBuffer buffer) {
+            this.buffer = buffer;
+            tracker = new Tracker(this, buffer);
+            trackers.add(tracker);
+        }
+
+        /**
+         * Returns the buffer of the slot. It must not be used after {@link #release()}.
+         *
+         * @return direct buffer of {@link #getSlotSize()} bytes
+         */
+        public ByteBuffer buffer() {
+            return buffer;
+        }
+
+        /**
+         * Returns the slot to the pool.
+         *
+         * @throws IllegalStateException if the slot is already released
+         */
+        public void release() {
+            BufferPool.this.release(this);
+        }
+    }
+
+    /**
+     * Notices a {@link Slot} collected by the garbage collector and keeps its memory for the pool.
+     */
+    private final class Tracker extends PhantomReference<Slot> {
+        private final ByteBuffer buffer;
+        private volatile boolean acquired;
+
+        Tracker(final Slot slot, final ByteBuffer buffer) {
+            super(slot, collected);
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class DefaultHolder {
+        private static final BufferPool POOL = new BufferPool(
+                Integer.getInteger("hello.buffer.size", DEFAULT_SLOT_SIZE));
+    }
+}
@@ -0,0 +1,24 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+/**
+ * Where {@link HelloUDPNonblockingServer} runs the {@link RequestHandler} for a received request.
+ *
+ * @author Boris Shaposhnikov
+ */
+public enum DispatchMode {
+    /**
+     * Every request is handed to the worker threads.
+     */
+    POOL,
+    /**
+     * Requests are handled on the selector thread while the handler is cheap, and handed to the workers
+     * when its measured cost, the number of datagrams in one wakeup or the number of requests already
+     * queued for the workers or for writing exceeds the inline limits.
+     */
+    ADAPTIVE,
+    /**
+     * Every source address is handled by one worker chosen by {@link Util#shard}, every worker has its own queue.
+     * Requests of one client are handled in order of receipt, and state kept per client is touched by one thread.
+     */
+    AFFINITY
+}
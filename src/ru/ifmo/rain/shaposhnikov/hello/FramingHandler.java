@@ -0,0 +1,80 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * {@link RequestHandler} answering {@link BinaryFrame binary frames} and batches in kind and text requests as is.
+ * The header of a frame is copied to the response and the wrapped handler replies to the payload.
+ * Every entry of a batch is answered by an entry of the response batch, entries that do not fit are not answered.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class FramingHandler implements RequestHandler {
+    private final RequestHandler handler;
+
+    /**
+     * Creates a handler.
+     *
+     * @param handler handler of text requests and frame payloads
+     */
+    public FramingHandler(final RequestHandler handler) {
+        this.handler = Objects.requireNonNull(handler);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws IllegalArgumentException if the request is a malformed frame or batch
+     */
+    @Override
+    public void handle(final ByteBuffer request, final ByteBuffer response) {
+        if (BinaryFrame.isBatch(request)) {
+            handleBatch(request, response);
+        } else {
+            handleSingle(request, response);
+        }
+    }
+
+    private void handleBatch(final ByteBuffer request, final ByteBuffer response) {
+        final int limit = request.limit();
+        final int count = BinaryFrame.getBatchCount(request);
+        if (count < 0) {
+            throw new IllegalArgumentException("Malformed batch");
+        }
+        final int start = BinaryFrame.startBatch(response);
+        final int reserve = BinaryFrame.ENTRY_LENGTH_WIDTH + BinaryFrame.MAX_HEADER_LENGTH;
+        int answered = 0;
+        for (; answered < count && response.remaining() > reserve; answered++) {
+            final int end = BinaryFrame.nextEntry(request);
+            if (end < 0 || BinaryFrame.isBatch(request)) {
+                throw new IllegalArgumentException("Malformed batch entry");
+            }
+            final int entry = BinaryFrame.startEntry(response);
+            handleSingle(request, response);
+            if (!response.hasRemaining()) {
+                // the reply may be truncated, the client sends the request again
+                response.position(entry);
+                break;
+            }
+            BinaryFrame.finishEntry(response, entry);
+            request.limit(limit).position(end);
+        }
+        BinaryFrame.finishBatch(response, start, answered);
+    }
+
+    private void handleSingle(final ByteBuffer request, final ByteBuffer response) {
+        if (!BinaryFrame.isFrame(request)) {
+            handler.handle(request, response);
+            return;
+        }
+        final int start = request.position();
+        if (!BinaryFrame.skipHeader(request)) {
+            throw new IllegalArgumentException("Malformed binary frame");
+        }
+        for (int i = start; i < request.position(); i++) {
+            response.put(request.get(i));
+        }
+        handler.handle(request, response);
+    }
+}
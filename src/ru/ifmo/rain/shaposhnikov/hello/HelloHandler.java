@@ -0,0 +1,21 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Default {@link RequestHandler} replying "Hello, {@code <request>}".
+ *
+ * @author Boris Shaposhnikov
+ */
+public class HelloHandler implements RequestHandler {
+    private static final byte[] HELLO = "Hello, ".getBytes(Util.CHARSET);
+
+    @Override
+    public void handle(final ByteBuffer request, final ByteBuffer response) {
+        response.put(HELLO, 0, Math.min(HELLO.length, response.remaining()));
+        if (request.remaining() > response.remaining()) {
+            request.limit(request.position() + response.remaining());
+        }
+        response.put(request);
+    }
+}
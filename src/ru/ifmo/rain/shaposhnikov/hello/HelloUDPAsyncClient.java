@@ -0,0 +1,408 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import info.kgeorgiy.java.advanced.hello.HelloClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client exchanging datagrams with a server asynchronously, for use as a library.
+ * <p>
+ * After {@link #connect(InetSocketAddress, int)} any thread may call {@link #send(byte[], long, TimeUnit)},
+ * which returns a future of the reply. Requests are sent by the engine of {@link HelloUDPNonblockingClient}
+ * on one selector thread over a few channels: a request is sent as a {@link BinaryFrame binary frame}
+ * with the channel and a request number in the header, and is sent again after the retransmission timeout
+ * until it is answered or its future is completed otherwise. Request numbers wrap around, so a client may run
+ * for any time. Servers of this package answer frames in kind.
+ * Every channel has at most its share of {@link #setMaxInFlight(int) the requests in flight}, the rest wait
+ * for their turn without being sent, so that many callers do not overflow the socket buffers with retransmissions.
+ * <p>
+ * Futures are completed on the selector thread, so dependent actions that block must use the async variants.
+ * {@link #run(String, int, String, int, int)} runs the same engine as {@link HelloUDPNonblockingClient}.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class HelloUDPAsyncClient implements HelloClient, AutoCloseable {
+    /**
+     * Default timeout of a request.
+     */
+    public static final long DEFAULT_TIMEOUT_NANOS = RttEstimator.MAX_TIMEOUT_NANOS;
+
+    /**
+     * Default maximal number of requests in flight.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    /**
+     * Decodes frame headers, the prefix is not used.
+     */
+    private static final RequestCodec FRAMES = new RequestCodec("", true);
+
+    private final HelloUDPNonblockingClient engine = new HelloUDPNonblockingClient();
+    private final Queue<Exchange> submitted = new ConcurrentLinkedQueue<>();
+    /**
+     * Exchanges whose futures are completed by a timeout or a caller, their requests are given up by the engine.
+     */
+    private final Queue<Exchange> released = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private boolean binary;
+    /**
+     * Set once by {@link #connect(InetSocketAddress, int)} and read by caller threads in {@link #send(byte[])}.
+     */
+    private volatile Lane[] lanes;
+    private Thread selectorThread;
+    private volatile boolean closed;
+
+    /**
+     * Sets the pool receive buffers are taken from. A reply longer than a slot of the pool is truncated,
+     * a request must leave room for the frame header in a slot.
+     * Must be called before {@link #connect(InetSocketAddress, int)}.
+     *
+     * @param bufferPool pool of direct buffers, {@link BufferPool#getDefault()} by default
+     * @return this client
+     */
+    public HelloUDPAsyncClient setBufferPool(final BufferPool bufferPool) {
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+        return this;
+    }
+
+    /**
+     * Sets the maximal number of requests in flight, divided evenly between the channels.
+     * Must be called before {@link #connect(InetSocketAddress, int)}.
+     *
+     * @param maxInFlight number of requests sent and not answered yet, {@link #DEFAULT_MAX_IN_FLIGHT} by default
+     * @return this client
+     */
+    public HelloUDPAsyncClient setMaxInFlight(final int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("Maximal number of requests in flight must be a positive number");
+        }
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Makes {@link #run(String, int, String, int, int)} send {@link BinaryFrame binary frames} instead of text.
+     * Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param binary <var>true</var> to use frames, <var>false</var> (text) by default
+     * @return this client
+     */
+    public HelloUDPAsyncClient setBinary(final boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /**
+     * Returns the metrics of the client, published over JMX while the client is connected.
+     *
+     * @return client metrics
+     */
+    public Metrics getMetrics() {
+        return engine.getMetrics();
+    }
+
+    /**
+     * Opens the channels and starts the selector thread. The client can be connected once.
+     *
+     * @param server   address of the server
+     * @param channels number of channels requests are spread over
+     * @return this client
+     * @throws IOException if a channel cannot be opened
+     */
+    public synchronized HelloUDPAsyncClient connect(final InetSocketAddress server, final int channels) throws IOException {
+        if (channels <= 0) {
+            throw new IllegalArgumentException("Number of channels must be a positive number");
+        }
+        if (lanes != null || closed) {
+            throw new IllegalStateException("Client is already connected");
+        }
+        final int maxRequestLength = bufferPool.getSlotSize() - BinaryFrame.MAX_HEADER_LENGTH;
+        final Lane[] lanes = new Lane[channels];
+        for (int i = 0; i < channels; i++) {
+            lanes[i] = new Lane(maxRequestLength);
+        }
+        engine.setBufferPool(bufferPool).setWindow(Math.max(1, maxInFlight / channels));
+        // not connected: an unreachable server must time requests out rather than close the channels
+        engine.open(List.of(Objects.requireNonNull(server)), false, channels, Long.MAX_VALUE, 0,
+                new Exchanges(lanes));
+        engine.getMetrics().register(getClass());
+        this.lanes = lanes;
+        selectorThread = new Thread(this::serve, getClass().getSimpleName());
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        return this;
+    }
+
+    /**
+     * Sends the request with {@link #DEFAULT_TIMEOUT_NANOS} timeout.
+     *
+     * @param request request payload
+     * @return future of the reply payload
+     * @see #send(byte[], long, TimeUnit)
+     */
+    public CompletableFuture<byte[]> send(final byte[] request) {
+        return send(request, DEFAULT_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sends the request in a frame and waits for the reply frame asynchronously.
+     *
+     * @param request request payload
+     * @param timeout time to wait for the reply
+     * @param unit    unit of the timeout
+     * @return future of the reply payload, completed exceptionally with {@link TimeoutException}
+     * if the request is not answered in time or with {@link ClosedChannelException} if the client is closed
+     * @throws IllegalStateException if the client is not connected
+     */
+    public CompletableFuture<byte[]> send(final byte[] request, final long timeout, final TimeUnit unit) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout must be a positive number");
+        }
+        final Lane[] lanes = this.lanes;
+        if (lanes == null) {
+            throw new IllegalStateException("Client is not connected");
+        }
+        final int lane = (nextId.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+        if (request.length > lanes[lane].maxRequestLength) {
+            throw new IllegalArgumentException("Request does not fit into a datagram: " + request.length + " bytes");
+        }
+        final CompletableFuture<byte[]> future = new CompletableFuture<>();
+        final long nanos = unit.toNanos(timeout);
+        if (nanos != Long.MAX_VALUE) {
+            future.orTimeout(nanos, TimeUnit.NANOSECONDS);
+        }
+        final Exchange exchange = new Exchange(lane, request.clone(), future);
+        future.whenComplete((reply, e) -> {
+            if (e != null && !closed) {
+                // timed out or cancelled: free the place in the window and the timer right away
+                released.add(exchange);
+                wakeup();
+            }
+        });
+        submitted.add(exchange);
+        if (closed) {
+            failSubmitted();
+        } else {
+            wakeup();
+        }
+        return future;
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            engine.wakeup();
+        }
+    }
+
+    private void failSubmitted() {
+        for (Exchange exchange = submitted.poll(); exchange != null; exchange = submitted.poll()) {
+            exchange.future.completeExceptionally(new ClosedChannelException());
+        }
+    }
+
+    private void serve() {
+        try {
+            engine.serve();
+        } finally {
+            closed = true;
+            failSubmitted();
+            engine.getMetrics().unregister();
+        }
+    }
+
+    /**
+     * Stops the selector thread and closes the channels. Requests in flight complete
+     * with {@link ClosedChannelException}.
+     */
+    @Override
+    public void close() {
+        final Thread thread;
+        synchronized (this) {
+            if (closed || lanes == null) {
+                closed = true;
+                return;
+            }
+            closed = true;
+            thread = selectorThread;
+        }
+        engine.wakeup();
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the requests with the engine of {@link HelloUDPNonblockingClient}, one request of every thread at a time.
+     *
+     * @throws IllegalStateException if the client is connected
+     */
+    @Override
+    public void run(final String host, final int port, final String prefix, final int threads, final int requests) {
+        synchronized (this) {
+            if (lanes != null) {
+                throw new IllegalStateException("Client is already connected");
+            }
+        }
+        engine.setBufferPool(bufferPool).setBinary(binary).run(host, port, prefix, threads, requests);
+    }
+
+    /**
+     * Main function for running the client.
+     *
+     * @param args <ul>
+     *             <li>1 - host</li>
+     *             <li>2 - port</li>
+     *             <li>3 - request prefix</li>
+     *             <li>4 - threads</li>
+     *             <li>5 - requests in thread</li>
+     *             </ul>
+     */
+    public static void main(final String[] args) {
+        Util.startClient(args, HelloUDPAsyncClient::new);
+    }
+
+    /**
+     * Requests of the callers by channel and request number, used by the selector thread only.
+     */
+    private final class Exchanges implements HelloUDPNonblockingClient.Exchanges {
+        private final Lane[] lanes;
+
+        Exchanges(final Lane[] lanes) {
+            this.lanes = lanes;
+        }
+
+        @Override
+        public int maxLength() {
+            return bufferPool.getSlotSize();
+        }
+
+        @Override
+        public void encode(final ByteBuffer buffer, final int channel, final int request) {
+            BinaryFrame.putHeader(buffer, channel, request);
+            buffer.put(lanes[channel].pending.get(request).payload);
+        }
+
+        @Override
+        public int decode(final ByteBuffer reply, final int channel) {
+            return FRAMES.decode(reply, channel);
+        }
+
+        @Override
+        public boolean isPending(final int channel, final int request) {
+            final Map<Integer, Exchange> pending = lanes[channel].pending;
+            final Exchange exchange = pending.get(request);
+            if (exchange == null) {
+                // released before it was sent
+                return false;
+            }
+            if (!exchange.future.isDone()) {
+                return true;
+            }
+            // timed out or cancelled by the caller and not released yet
+            pending.remove(request);
+            return false;
+        }
+
+        @Override
+        public void answered(final int channel, final int request, final ByteBuffer reply) {
+            final Exchange exchange = lanes[channel].pending.remove(request);
+            final ByteBuffer payload = reply.duplicate();
+            BinaryFrame.skipHeader(payload);
+            final byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            exchange.future.complete(bytes);
+        }
+
+        @Override
+        public boolean update() {
+            // requests submitted from now on need a new wakeup
+            wakeupPending.set(false);
+            if (closed) {
+                return false;
+            }
+            for (Exchange exchange = released.poll(); exchange != null; exchange = released.poll()) {
+                final Map<Integer, Exchange> pending = lanes[exchange.lane].pending;
+                if (exchange.request >= 0 && pending.get(exchange.request) == exchange) {
+                    pending.remove(exchange.request);
+                    engine.abandon(exchange.lane, exchange.request);
+                }
+            }
+            for (Exchange exchange = submitted.poll(); exchange != null; exchange = submitted.poll()) {
+                final Lane lane = lanes[exchange.lane];
+                if (!lane.open) {
+                    exchange.future.completeExceptionally(new ClosedChannelException());
+                } else if (!exchange.future.isDone()) {
+                    exchange.request = lane.nextRequest;
+                    lane.pending.put(exchange.request, exchange);
+                    // request numbers of the engine wrap around the same way
+                    lane.nextRequest = (lane.nextRequest + 1) & Integer.MAX_VALUE;
+                    engine.extend(exchange.lane);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void closed(final int channel) {
+            final Lane lane = lanes[channel];
+            lane.open = false;
+            lane.pending.values().forEach(exchange -> exchange.future.completeExceptionally(new ClosedChannelException()));
+            lane.pending.clear();
+        }
+    }
+
+    /**
+     * Requests of a channel that are waiting or in flight, by request number. Used by the selector thread only.
+     */
+    private static final class Lane {
+        private final int maxRequestLength;
+        private final Map<Integer, Exchange> pending = new HashMap<>();
+        private int nextRequest;
+        private boolean open = true;
+
+        Lane(final int maxRequestLength) {
+            this.maxRequestLength = maxRequestLength;
+        }
+    }
+
+    /**
+     * A request with the future of its reply.
+     */
+    private static final class Exchange {
+        private final int lane;
+        private final byte[] payload;
+        private final CompletableFuture<byte[]> future;
+        /**
+         * Request number in the lane, {@code -1} until the selector thread takes the request.
+         */
+        private int request = -1;
+
+        Exchange(final int lane, final byte[] payload, final CompletableFuture<byte[]> future) {
+            this.lane = lane;
+            this.payload = payload;
+            this.future = future;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import info.kgeorgiy.java.advanced.hello.HelloClient;
 import ru.ifmo.rain.shaposhnikov.hello.Util.ExchangeDatagramPacket;
 
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -15,23 +16,74 @@ import java.util.stream.IntStream;
  * @author Boris Shaposhnikov
  */
 public class HelloUDPClient implements HelloClient {
-    private static void requestUDP(final SocketAddress socketAddress, final String prefix,
-                                   final int thread, final int requests) {
+    private final Metrics metrics = new Metrics();
+    private boolean binary;
+
+    /**
+     * Sends requests as {@link BinaryFrame binary frames} and expects frames in reply.
+     * Servers of this package answer frames in kind. Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param binary <var>true</var> to use frames, <var>false</var> (text) by default
+     * @return this client
+     */
+    public HelloUDPClient setBinary(final boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /**
+     * Returns the metrics of the client, published over JMX while {@link #run(String, int, String, int, int)} runs.
+     *
+     * @return client metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void requestUDP(final SocketAddress socketAddress, final RequestCodec codec,
+                            final RttEstimator estimator, final int thread, final int requests) {
         try (final DatagramSocket datagramSocket = new DatagramSocket()) {
-            datagramSocket.setSoTimeout(Util.TIMEOUT_MILLISECONDS);
             final ExchangeDatagramPacket requestPacket =
                     new ExchangeDatagramPacket(datagramSocket.getReceiveBufferSize(), socketAddress);
-            IntStream.range(0, requests).forEach(request -> {
-                final String requestMessage = String.format("%s%d_%d", prefix, thread, request);
-                String response = "";
-                while (!datagramSocket.isClosed()
-                        && !Thread.currentThread().isInterrupted()
-                        && !Util.isRespond(response, thread, request)) {
-                    response = requestPacket.request(requestMessage, datagramSocket);
+            final ByteBuffer requestBuffer = ByteBuffer.allocate(codec.maxLength());
+            // timeouts of this thread in a row, the estimator is shared by all threads
+            int backoff = 0;
+            for (int request = 0; request < requests; request++) {
+                requestBuffer.clear();
+                codec.encode(requestBuffer, thread, request);
+                requestBuffer.flip();
+                boolean retransmitted = false;
+                while (!datagramSocket.isClosed() && !Thread.currentThread().isInterrupted()) {
+                    datagramSocket.setSoTimeout(estimator.getTimeoutMillis(backoff));
+                    if (retransmitted) {
+                        metrics.retransmitted();
+                    }
+                    final long sentAt = System.nanoTime();
+                    if (requestPacket.send(requestBuffer, datagramSocket)) {
+                        metrics.sent(requestBuffer.remaining());
+                    } else {
+                        metrics.sendError();
+                    }
+                    final ByteBuffer response = requestPacket.receiveBytes(datagramSocket);
+                    if (response == null) {
+                        backoff++;
+                    } else {
+                        backoff = 0;
+                        metrics.received(response.remaining());
+                        if (codec.decode(response, thread) == request) {
+                            final long rtt = System.nanoTime() - sentAt;
+                            if (!retransmitted) {
+                                estimator.sample(rtt);
+                            }
+                            metrics.latency(rtt);
+                            break;
+                        }
+                    }
+                    retransmitted = true;
                 }
-            });
+            }
         } catch (final SocketException e) {
-            System.err.println("Error during creating datagram socket: " + e.getMessage());
+            Log.error("Error during creating datagram socket: " + e.getMessage());
         }
     }
 
@@ -41,21 +93,25 @@ public class HelloUDPClient implements HelloClient {
         try {
             socketAddress = new InetSocketAddress(InetAddress.getByName(host), port);
         } catch (final UnknownHostException e) {
-            System.err.println("Invalid host name: " + e.getMessage());
+            Log.error("Invalid host name: " + e.getMessage());
             return;
         }
 
+        final RequestCodec codec = new RequestCodec(prefix, binary);
+        final RttEstimator estimator = new RttEstimator();
+        metrics.register(getClass());
         final ExecutorService threadPool = Executors.newFixedThreadPool(threads);
-        IntStream.range(0, threads)
-                .forEach(thread -> threadPool.submit(() -> requestUDP(socketAddress, prefix, thread, requests)));
+        IntStream.range(0, threads).forEach(thread ->
+                threadPool.submit(() -> requestUDP(socketAddress, codec, estimator, thread, requests)));
         threadPool.shutdown();
         try {
-            System.out.println(threadPool.awaitTermination(Util.TIMEOUT_COEFFICIENT_SECONDS * threads * requests, TimeUnit.SECONDS)
+            Log.info(threadPool.awaitTermination(Util.TIMEOUT_COEFFICIENT_SECONDS * threads * requests, TimeUnit.SECONDS)
                     ? "All requests are processed"
                     : "Timeout exceeded");
         } catch (final InterruptedException e) {
-            System.err.println("Working threads were interrupted: " + e.getMessage());
+            Log.error("Working threads were interrupted: " + e.getMessage());
         }
+        metrics.unregister();
     }
 
     /**
@@ -10,8 +10,11 @@ import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -20,31 +23,270 @@ import java.util.stream.IntStream;
  * @author Boris Shaposhnikov
  */
 public class HelloUDPNonblockingClient implements HelloClient {
-    private Selector selector;
+    /**
+     * Volatile since {@link HelloUDPAsyncClient} wakes the selector up from caller threads.
+     */
+    private volatile Selector selector;
 
-    private final Set<DatagramChannel> waitingChannels = new HashSet<>();
-    private int requests;
+    private final TimerWheel timers = new TimerWheel();
+    private long requests;
     private int workingThreads;
-    private SocketAddress socketAddress;
-
+    private List<InetSocketAddress> endpoints;
+    private LoadBalancer.Policy policy = LoadBalancer.Policy.LEAST_OUTSTANDING;
+    private LoadBalancer balancer;
+    private int window = 1;
+    private Exchanges exchanges;
+    private ChannelInfo[] channels;
+    private ByteBuffer requestBuffer;
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private final Metrics metrics = new Metrics();
+    private double rate;
+    private long selectSpinNanos;
+    private boolean binary;
+    private boolean batching;
+    private LoadReport loadReport;
 
     private final Consumer<DatagramChannel> CLOSE_CHANNEL = channel -> {
+        final SelectionKey key = channel.keyFor(selector);
+        releaseBuffer(key);
         Util.tryClose(channel);
         workingThreads--;
+        if (key != null && key.attachment() != null) {
+            exchanges.closed(((ChannelInfo) key.attachment()).getIndex());
+        }
+    };
+
+    /**
+     * Nothing wakes the selector of the client up from other threads.
+     */
+    private static final BooleanSupplier NOT_WOKEN = () -> false;
+
+    /**
+     * Bytes left in a batch for every entry to grow by in the reply, so that the reply fits into one datagram too.
+     */
+    public static final int BATCH_REPLY_HEADROOM = 16;
+
+    private final Consumer<TimerWheel.Timeout> RETRANSMIT = timeout -> {
+        final RequestTimer timer = (RequestTimer) timeout;
+        final ChannelInfo channelInfo = timer.channelInfo;
+        final SelectionKey key = channelInfo.getKey();
+        if (key.isValid() && !exchanges.isPending(channelInfo.getIndex(), timer.request)) {
+            // given up meanwhile, neither lost nor sent again
+            balancer.cancel(channelInfo.getSentTo(timer.request));
+            channelInfo.abandon(timer.request);
+            slide(key, (DatagramChannel) key.channel(), channelInfo);
+            return;
+        }
+        balancer.lost(channelInfo.getSentTo(timer.request), System.nanoTime());
+        if (key.isValid()) {
+            metrics.retransmitted();
+            channelInfo.expired(timer.request);
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
     };
 
-    private void write(final String prefix, final SelectionKey key) {
+    /**
+     * Sets the number of requests every channel keeps in flight. Replies are matched by request number
+     * and may come in any order, only unanswered requests are sent again after a timeout.
+     * Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param window number of outstanding requests per channel, {@code 1} by default
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setWindow(final int window) {
+        if (window < 1) {
+            throw new IllegalArgumentException("Window must be a positive number");
+        }
+        this.window = window;
+        return this;
+    }
+
+    /**
+     * Switches the client to the open-loop load generator mode. All <var>threads</var> {@code *} <var>requests</var>
+     * requests are sent on a fixed schedule at the given rate, round-robin over the channels, without waiting
+     * for replies and without retransmissions. Latency is measured from the scheduled send time,
+     * the results are logged and available from {@link #getLoadReport()}.
+     * Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param rate requests per second, {@code 0} (closed-loop mode) by default
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setRate(final double rate) {
+        if (!(rate >= 0) || Double.isInfinite(rate)) {
+            throw new IllegalArgumentException("Rate must be a non-negative number");
+        }
+        this.rate = rate;
+        return this;
+    }
+
+    /**
+     * Returns the result of the last open-loop run.
+     *
+     * @return report or <var>null</var> if the client was not run in the open-loop mode
+     */
+    public LoadReport getLoadReport() {
+        return loadReport;
+    }
+
+    /**
+     * Sets the pool response buffers are taken from. A response longer than a slot of the pool
+     * is truncated. Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param bufferPool pool of direct buffers, {@link BufferPool#getDefault()} by default
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setBufferPool(final BufferPool bufferPool) {
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+        return this;
+    }
+
+    /**
+     * Sets how long the client polls its selector before blocking in {@link Selector#select(long)}.
+     * Polling avoids the park and wakeup on every reply at low rates, but keeps a core busy
+     * while waiting. In the open-loop mode a gap shorter than a millisecond between sends is polled
+     * if it fits into the spin time, otherwise the selector thread blocks and a pacer thread wakes it up
+     * when the next request is due.
+     * Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param spinNanos polling time in nanoseconds, {@code 0} (block right away) by default
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setSelectSpin(final long spinNanos) {
+        if (spinNanos < 0) {
+            throw new IllegalArgumentException("Spin time must be a non-negative number");
+        }
+        this.selectSpinNanos = spinNanos;
+        return this;
+    }
+
+    /**
+     * Sends requests as {@link BinaryFrame binary frames} and expects frames in reply.
+     * Servers of this package answer frames in kind. Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param binary <var>true</var> to use frames, <var>false</var> (text) by default
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setBinary(final boolean binary) {
+        this.binary = binary;
+        return this;
+    }
+
+    /**
+     * Packs the requests of a channel that are ready to be sent into batches of at most
+     * {@link BinaryFrame#MAX_BATCH_LENGTH} bytes, every entry leaving {@link #BATCH_REPLY_HEADROOM} bytes
+     * for its reply. Servers of this package answer a batch with one datagram, entries that are not answered
+     * are sent again after a timeout. A channel has at most {@link #setWindow(int) window} requests in flight,
+     * so batching needs a larger window. Does not apply to the open-loop mode.
+     * Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param batching <var>true</var> to send batches, <var>false</var> (a datagram per request) by default
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setBatching(final boolean batching) {
+        this.batching = batching;
+        return this;
+    }
+
+    /**
+     * Sends requests to several servers instead of the host and port passed to
+     * {@link #run(String, int, String, int, int)}. Endpoints with high loss or latency are ejected
+     * for a while, see {@link LoadBalancer}. Must be called before {@link #run(String, int, String, int, int)}.
+     *
+     * @param endpoints addresses of the servers, resolved when the client runs
+     * @param policy    how requests are spread across the servers
+     * @return this client
+     */
+    public HelloUDPNonblockingClient setEndpoints(final List<InetSocketAddress> endpoints, final LoadBalancer.Policy policy) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.policy = Objects.requireNonNull(policy);
+        return this;
+    }
+
+    /**
+     * Returns the balancer of the last run with the statistics of its endpoints.
+     *
+     * @return balancer or <var>null</var> if the client was not run
+     */
+    public LoadBalancer getLoadBalancer() {
+        return balancer;
+    }
+
+    /**
+     * Returns the metrics of the client, published over JMX while {@link #run(String, int, String, int, int)} runs.
+     *
+     * @return client metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private static void releaseBuffer(final SelectionKey key) {
+        if (key != null && key.attachment() != null) {
+            ((ChannelInfo) key.attachment()).release();
+        }
+    }
+
+    private void write(final SelectionKey key) {
         final DatagramChannel channel = (DatagramChannel) key.channel();
         final ChannelInfo channelInfo = (ChannelInfo) key.attachment();
 
         final int thread = channelInfo.getIndex();
-        final int request = channelInfo.getCurrentRequest();
+        final long now = System.nanoTime();
+        if (batching) {
+            writeBatches(key, channel, channelInfo, now);
+            return;
+        }
+        for (int request = nextToSend(key, channel, channelInfo, now); request >= 0;
+             request = nextToSend(key, channel, channelInfo, now)) {
+            requestBuffer.clear();
+            exchanges.encode(requestBuffer, thread, request);
+            requestBuffer.flip();
+            final LoadBalancer.Endpoint endpoint = balancer.choose(thread, now);
+            channelInfo.setSentTo(request, endpoint);
+            if (!Util.send(channel, requestBuffer, endpoint.getAddress(), CLOSE_CHANNEL)) {
+                metrics.sendError();
+                return;
+            }
+            metrics.sent(requestBuffer.remaining());
+            timers.schedule(channelInfo.getTimer(request), now + endpoint.getTimeoutNanos(channelInfo.getBackoff(request)));
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
 
-        final String requestMessage = String.format("%s%d_%d", prefix, thread, request);
-        if (Util.send(channel, requestMessage.getBytes(Util.CHARSET), socketAddress, CLOSE_CHANNEL)) {
-            waitingChannels.add(channel);
-            key.interestOps(SelectionKey.OP_READ);
+    private void writeBatches(final SelectionKey key, final DatagramChannel channel,
+                              final ChannelInfo channelInfo, final long now) {
+        final int thread = channelInfo.getIndex();
+        final int entryLength = BinaryFrame.ENTRY_LENGTH_WIDTH + exchanges.maxLength() + BATCH_REPLY_HEADROOM;
+        for (int request = nextToSend(key, channel, channelInfo, now); request >= 0;
+             request = nextToSend(key, channel, channelInfo, now)) {
+            final LoadBalancer.Endpoint endpoint = balancer.choose(thread, now);
+            requestBuffer.clear();
+            final int start = BinaryFrame.startBatch(requestBuffer);
+            int count = 0;
+            do {
+                if (count > 0) {
+                    balancer.assign(endpoint);
+                }
+                channelInfo.setSentTo(request, endpoint);
+                final int entry = BinaryFrame.startEntry(requestBuffer);
+                exchanges.encode(requestBuffer, thread, request);
+                BinaryFrame.finishEntry(requestBuffer, entry);
+                timers.schedule(channelInfo.getTimer(request), now + endpoint.getTimeoutNanos(channelInfo.getBackoff(request)));
+                count++;
+            } while (requestBuffer.position() + entryLength + count * BATCH_REPLY_HEADROOM <= BinaryFrame.MAX_BATCH_LENGTH
+                    && (request = nextToSend(key, channel, channelInfo, now)) >= 0);
+            BinaryFrame.finishBatch(requestBuffer, start, count);
+            requestBuffer.flip();
+            if (!Util.send(channel, requestBuffer, endpoint.getAddress(), CLOSE_CHANNEL)) {
+                metrics.sendError();
+                return;
+            }
+            metrics.sent(requestBuffer.remaining());
         }
+        key.interestOps(SelectionKey.OP_READ);
     }
 
     private void read(final SelectionKey key) {
@@ -52,31 +294,163 @@ public class HelloUDPNonblockingClient implements HelloClient {
         final ChannelInfo channelInfo = (ChannelInfo) key.attachment();
 
         final int thread = channelInfo.getIndex();
-        final int request = channelInfo.getCurrentRequest();
 
-        Util.receive(channel, channelInfo.getBuffer(), CLOSE_CHANNEL);
+        final ByteBuffer buffer = channelInfo.getBuffer();
+        buffer.clear();
+        final SocketAddress source = Util.receive(channel, buffer, CLOSE_CHANNEL);
+        if (source == null) {
+            if (!channel.isOpen()) {
+                metrics.receiveError();
+            }
+            return;
+        }
 
-        final String response = Util.read(channelInfo.getBuffer());
-        if (Util.isRespond(response, thread, request)) {
-            waitingChannels.remove(channel);
-            key.interestOps(SelectionKey.OP_WRITE);
-            if (channelInfo.increaseCurrentRequest() == requests) {
-                CLOSE_CHANNEL.accept(channel);
+        buffer.flip();
+        metrics.received(buffer.remaining());
+        if (!channel.isConnected() && balancer.find(source) == null) {
+            return;
+        }
+        channelInfo.heard();
+        final long now = System.nanoTime();
+        if (!BinaryFrame.isBatch(buffer)) {
+            final int request = exchanges.decode(buffer, thread);
+            final int sole = channelInfo.soleInFlight();
+            if (request < 0 && sole >= 0) {
+                // a malformed reply can only answer the request in flight, send it again without waiting
+                timers.cancel(channelInfo.getTimer(sole));
+                metrics.retransmitted();
+                channelInfo.markResend(sole);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            accept(key, channel, channelInfo, request, now, buffer);
+            return;
+        }
+        final int limit = buffer.limit();
+        final int count = BinaryFrame.getBatchCount(buffer);
+        for (int i = 0; i < count && channel.isOpen(); i++) {
+            final int end = BinaryFrame.nextEntry(buffer);
+            if (end < 0) {
+                return;
             }
+            accept(key, channel, channelInfo, exchanges.decode(buffer, thread), now, buffer);
+            buffer.limit(limit).position(end);
         }
     }
 
-    private void run(final String prefix) {
-        while (workingThreads > 0) {
-            try {
-                if (selector.select(Util.TIMEOUT_MILLISECONDS) == 0) {
-                    waitingChannels.forEach(channel -> channel.keyFor(selector).interestOps(SelectionKey.OP_WRITE));
+    private void accept(final SelectionKey key, final DatagramChannel channel, final ChannelInfo channelInfo,
+                        final int request, final long now, final ByteBuffer reply) {
+        if (channelInfo.isInFlight(request)) {
+            timers.cancel(channelInfo.getTimer(request));
+            channelInfo.acknowledge(request, now, balancer, metrics);
+            exchanges.answered(channelInfo.getIndex(), request, reply);
+            slide(key, channel, channelInfo);
+        }
+    }
+
+    private void slide(final SelectionKey key, final DatagramChannel channel, final ChannelInfo channelInfo) {
+        if (channelInfo.getCompleted() == requests) {
+            CLOSE_CHANNEL.accept(channel);
+        } else if (channelInfo.canSend()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Returns the next request of the channel to send, skipping the requests the exchanges have given up.
+     *
+     * @return request number or {@code -1} if there is nothing to send
+     */
+    private int nextToSend(final SelectionKey key, final DatagramChannel channel,
+                           final ChannelInfo channelInfo, final long now) {
+        for (int request = channelInfo.nextToSend(now); request >= 0; request = channelInfo.nextToSend(now)) {
+            if (exchanges.isPending(channelInfo.getIndex(), request)) {
+                return request;
+            }
+            timers.cancel(channelInfo.getTimer(request));
+            channelInfo.abandon(request);
+            slide(key, channel, channelInfo);
+            if (!channel.isOpen()) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes one more request of the channel available to send. Called from {@link Exchanges#update()}.
+     *
+     * @param channel channel number
+     */
+    void extend(final int channel) {
+        final ChannelInfo channelInfo = channels[channel];
+        channelInfo.extend();
+        if (channelInfo.canSend() && channelInfo.getKey().isValid()) {
+            channelInfo.getKey().interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Gives up the request in flight right away: frees its place in the window and cancels its timeout,
+     * without accounting it as lost. Called from {@link Exchanges#update()} for requests that are not wanted
+     * anymore, a request that is not sent yet is skipped when its turn comes, see {@link Exchanges#isPending}.
+     *
+     * @param channel channel number
+     * @param request request number in the channel
+     */
+    void abandon(final int channel, final int request) {
+        final ChannelInfo channelInfo = channels[channel];
+        final SelectionKey key = channelInfo.getKey();
+        if (!key.isValid() || !channelInfo.isInFlight(request)) {
+            return;
+        }
+        final RequestTimer timer = channelInfo.getTimer(request);
+        if (timer.isScheduled()) {
+            // otherwise the timeout has expired and the request is already accounted as lost
+            timers.cancel(timer);
+            balancer.cancel(channelInfo.getSentTo(request));
+        }
+        channelInfo.abandon(request);
+        slide(key, (DatagramChannel) key.channel(), channelInfo);
+    }
+
+    /**
+     * Wakes the thread running {@link #serve()} up, so that it calls {@link Exchanges#update()}.
+     * May be called from any thread.
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Sends and retransmits requests until all channels are closed or {@link Exchanges#update()} returns
+     * <var>false</var>, then closes the channels and the selector. Runs on the thread that called it.
+     */
+    void serve() {
+        try {
+            loop();
+        } finally {
+            for (final SelectionKey key : new ArrayList<>(selector.keys())) {
+                if (key.channel().isOpen()) {
+                    CLOSE_CHANNEL.accept((DatagramChannel) key.channel());
                 }
+            }
+            Util.tryClose(selector);
+        }
+    }
+
+    private void loop() {
+        while (workingThreads > 0 && exchanges.update()) {
+            try {
+                final long untilNext = timers.nanosUntilNext(System.nanoTime());
+                Util.select(selector,
+                        untilNext < 0 ? Util.TIMEOUT_MILLISECONDS : TimeUnit.NANOSECONDS.toMillis(untilNext) + 1,
+                        selectSpinNanos, NOT_WOKEN);
                 for (final Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
                     final SelectionKey key = it.next();
                     try {
                         if (key.isWritable()) {
-                            write(prefix, key);
+                            write(key);
                         }
                         if (key.isValid() && key.isReadable()) {
                             read(key);
@@ -85,45 +459,284 @@ public class HelloUDPNonblockingClient implements HelloClient {
                         it.remove();
                     }
                 }
+                timers.expire(System.nanoTime(), RETRANSMIT);
             } catch (final IOException e) {
-                System.err.println("Error during selecting: " + e.getMessage());
+                Log.error("Error during selecting: " + e.getMessage());
             }
         }
     }
 
+    /**
+     * Starts a thread that wakes the selector up when every request of the open-loop mode is due,
+     * so that the selector thread blocks between sends shorter than the shortest selector timeout
+     * and still sees every reply as soon as it arrives.
+     *
+     * @param start    {@link System#nanoTime()} the schedule starts at
+     * @param interval nanoseconds between sends
+     * @param total    number of requests
+     * @return started thread, stopped by an interrupt
+     */
+    private Thread startPacer(final long start, final double interval, final long total) {
+        final Thread pacer = new Thread(() -> {
+            long next = 1;
+            while (next < total && !Thread.currentThread().isInterrupted()) {
+                final long wait = start + (long) (next * interval) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                selector.wakeup();
+                // sends that have become due while parking are sent together
+                next = Math.max(next + 1, (long) ((System.nanoTime() - start) / interval) + 1);
+            }
+        }, "Pacer");
+        pacer.setDaemon(true);
+        pacer.start();
+        return pacer;
+    }
+
+    /**
+     * Open-loop mode: sends requests when they are due and accounts replies until all requests are answered
+     * or {@link RttEstimator#MAX_TIMEOUT_NANOS} passes after the last one is sent.
+     * A request not answered within the retransmission timeout of its endpoint is reported to the balancer as lost,
+     * a later reply still counts in the {@link LoadReport}.
+     */
+    private void runOpenLoop(final List<DatagramChannel> channels) {
+        final int threads = channels.size();
+        final long total = (long) threads * requests;
+        if (total > Integer.MAX_VALUE) {
+            Log.error("Too many requests for the open-loop mode: " + total);
+            channels.forEach(CLOSE_CHANNEL);
+            return;
+        }
+        final double interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        final BitSet answered = new BitSet();
+        // endpoints of the requests from the oldest one the balancer still waits for, null if not sent
+        LoadBalancer.Endpoint[] sentTo = new LoadBalancer.Endpoint[64];
+        long oldest = 0;
+        final LatencyHistogram latency = new LatencyHistogram();
+        selector.keys().forEach(key -> key.interestOps(SelectionKey.OP_READ));
+
+        final long start = System.nanoTime();
+        long next = 0;
+        long replies = 0;
+        long lastEvent = start;
+        final Thread pacer = interval < TimeUnit.MILLISECONDS.toNanos(1) && interval > selectSpinNanos
+                ? startPacer(start, interval, total)
+                : null;
+        while (workingThreads > 0) {
+            long now = System.nanoTime();
+            for (; next < total && start + (long) (next * interval) - now <= 0; next++) {
+                if (next - oldest == sentTo.length) {
+                    sentTo = grow(sentTo, oldest, next);
+                }
+                final DatagramChannel channel = channels.get((int) (next % threads));
+                if (!channel.isOpen()) {
+                    continue;
+                }
+                requestBuffer.clear();
+                exchanges.encode(requestBuffer, (int) (next % threads), (int) (next / threads));
+                requestBuffer.flip();
+                final LoadBalancer.Endpoint endpoint = balancer.choose((int) (next % threads), now);
+                sentTo[(int) (next & (sentTo.length - 1))] = endpoint;
+                if (Util.send(channel, requestBuffer, endpoint.getAddress(), CLOSE_CHANNEL)) {
+                    metrics.sent(requestBuffer.remaining());
+                } else {
+                    metrics.sendError();
+                }
+                lastEvent = now;
+            }
+            for (; oldest < next; oldest++) {
+                final int slot = (int) (oldest & (sentTo.length - 1));
+                final LoadBalancer.Endpoint endpoint = sentTo[slot];
+                if (endpoint != null && !answered.get((int) oldest)) {
+                    if (now - start - (long) (oldest * interval) < endpoint.getTimeoutNanos(0)) {
+                        break;
+                    }
+                    balancer.lost(endpoint, now);
+                }
+                sentTo[slot] = null;
+            }
+            if (replies == total || next == total && now - lastEvent > RttEstimator.MAX_TIMEOUT_NANOS) {
+                break;
+            }
+            final long wait = next < total
+                    ? start + (long) (next * interval) - now
+                    : lastEvent + RttEstimator.MAX_TIMEOUT_NANOS - now;
+            try {
+                if (wait <= 0) {
+                    selector.selectNow();
+                } else if (wait < TimeUnit.MILLISECONDS.toNanos(1)) {
+                    // selector timeouts are whole milliseconds: poll the gap if allowed, otherwise
+                    // the pacer wakes the selector up when the send is due, a reply wakes it up at once
+                    if (wait <= selectSpinNanos) {
+                        selector.selectNow();
+                    } else {
+                        selector.select(1);
+                    }
+                } else {
+                    Util.select(selector, TimeUnit.NANOSECONDS.toMillis(wait), selectSpinNanos, NOT_WOKEN);
+                }
+            } catch (final IOException e) {
+                Log.error("Error during selecting: " + e.getMessage());
+                break;
+            }
+            for (final Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                final SelectionKey key = it.next();
+                it.remove();
+                final ChannelInfo channelInfo = (ChannelInfo) key.attachment();
+                final DatagramChannel channel = (DatagramChannel) key.channel();
+                final ByteBuffer buffer = channelInfo.getBuffer();
+                buffer.clear();
+                final SocketAddress source = Util.receive(channel, buffer, CLOSE_CHANNEL);
+                now = System.nanoTime();
+                if (source == null) {
+                    if (!channel.isOpen()) {
+                        metrics.receiveError();
+                    }
+                    continue;
+                }
+                buffer.flip();
+                metrics.received(buffer.remaining());
+                final int thread = channelInfo.getIndex();
+                final int request = exchanges.decode(buffer, thread);
+                final long index = (long) request * threads + thread;
+                if (request < 0 || index >= next || answered.get((int) index)) {
+                    continue;
+                }
+                answered.set((int) index);
+                final LoadBalancer.Endpoint endpoint = index >= oldest ? sentTo[(int) (index & (sentTo.length - 1))] : null;
+                if (endpoint != null) {
+                    balancer.answered(endpoint, -1);
+                }
+                replies++;
+                lastEvent = now;
+                final long intended = start + (long) (index * interval);
+                latency.record(now - intended);
+                metrics.latency(now - intended);
+            }
+        }
+        if (pacer != null) {
+            pacer.interrupt();
+        }
+        for (; oldest < next; oldest++) {
+            final LoadBalancer.Endpoint endpoint = sentTo[(int) (oldest & (sentTo.length - 1))];
+            if (endpoint != null && !answered.get((int) oldest)) {
+                balancer.lost(endpoint, lastEvent);
+            }
+        }
+        channels.forEach(channel -> {
+            if (channel.isOpen()) {
+                CLOSE_CHANNEL.accept(channel);
+            }
+        });
+        loadReport = new LoadReport(rate, next, replies, lastEvent - start, latency);
+        Log.info(loadReport.toString());
+    }
+
+    /**
+     * Doubles the ring of endpoints of the open-loop mode, keeping the requests from <var>from</var> to <var>to</var>.
+     */
+    private static LoadBalancer.Endpoint[] grow(final LoadBalancer.Endpoint[] ring, final long from, final long to) {
+        final LoadBalancer.Endpoint[] grown = new LoadBalancer.Endpoint[ring.length * 2];
+        for (long i = from; i < to; i++) {
+            grown[(int) (i & (grown.length - 1))] = ring[(int) (i & (ring.length - 1))];
+        }
+        return grown;
+    }
+
     @Override
     public void run(final String host, final int port, final String prefix, final int threads, final int requests) {
+        final List<InetSocketAddress> addresses = new ArrayList<>();
         try {
-            socketAddress = new InetSocketAddress(InetAddress.getByName(host), port);
+            if (endpoints == null) {
+                addresses.add(new InetSocketAddress(InetAddress.getByName(host), port));
+            } else {
+                for (final InetSocketAddress endpoint : endpoints) {
+                    addresses.add(endpoint.isUnresolved()
+                            ? new InetSocketAddress(InetAddress.getByName(endpoint.getHostString()), endpoint.getPort())
+                            : endpoint);
+                }
+            }
         } catch (final UnknownHostException e) {
-            System.err.println("Invalid host name: " + e.getMessage());
+            Log.error("Invalid host name: " + e.getMessage());
             return;
         }
-
-        selector = Util.tryOpenSelector();
-        if (selector == null) {
+        try {
+            open(addresses, addresses.size() == 1, threads, requests, requests,
+                    new CodecExchanges(new RequestCodec(prefix, binary)));
+        } catch (final IOException e) {
+            Log.error("Error during creating a datagram channel: " + e.getMessage());
             return;
         }
+        metrics.register(getClass());
+        try {
+            if (rate > 0) {
+                try {
+                    runOpenLoop(Arrays.stream(channels)
+                            .map(channelInfo -> (DatagramChannel) channelInfo.getKey().channel())
+                            .collect(Collectors.toList()));
+                } finally {
+                    Util.tryClose(selector);
+                }
+            } else {
+                serve();
+            }
+        } finally {
+            metrics.unregister();
+        }
+        if (balancer.getEndpoints().size() > 1) {
+            balancer.getEndpoints().forEach(endpoint -> Log.info(endpoint.toString()));
+        }
+    }
+
+    /**
+     * Opens the selector and a channel per thread, the requests are then sent by {@link #serve()}.
+     *
+     * @param addresses resolved addresses of the servers
+     * @param connect   <var>true</var> to connect the channels to the only server, an unreachable server
+     *                  then closes them, otherwise replies are filtered by source
+     * @param threads   number of channels
+     * @param requests  number of requests of every channel, the channel is closed when all of them are answered,
+     *                  {@link Long#MAX_VALUE} for no limit
+     * @param available number of requests every channel may send before {@link #extend(int)} is called
+     * @param exchanges requests and handling of their replies
+     * @throws IOException if the selector or a channel cannot be opened
+     */
+    void open(final List<InetSocketAddress> addresses, final boolean connect, final int threads,
+              final long requests, final long available, final Exchanges exchanges) throws IOException {
+        balancer = new LoadBalancer(addresses, policy);
 
-        final List<DatagramChannel> openingChannel =  new ArrayList<>();
+        final Selector selector = Selector.open();
+        final ChannelInfo[] channels = new ChannelInfo[threads];
+        final List<DatagramChannel> openingChannel = new ArrayList<>();
         for (int i = 0; i < threads; i++) {
             try {
                 final DatagramChannel channel = DatagramChannel.open();
                 openingChannel.add(channel);
 
                 channel.configureBlocking(false);
-                channel.connect(socketAddress);
-                channel.register(selector, SelectionKey.OP_WRITE, new ChannelInfo(channel, i));
+                if (connect) {
+                    channel.connect(addresses.get(0));
+                }
+                final SelectionKey key = channel.register(selector, SelectionKey.OP_WRITE);
+                channels[i] = new ChannelInfo(key, i, window, requests, available, bufferPool.acquire());
+                key.attach(channels[i]);
             } catch (final IOException e) {
+                selector.keys().forEach(HelloUDPNonblockingClient::releaseBuffer);
                 Util.tryClose(selector);
                 openingChannel.forEach(Util::tryClose);
-                System.err.println("Error during creating a datagram channel: " + e.getMessage());
-                return;
+                throw e;
             }
         }
+        this.selector = selector;
+        this.channels = channels;
         this.workingThreads = threads;
         this.requests = requests;
-        run(prefix);
+        this.exchanges = exchanges;
+        this.requestBuffer = ByteBuffer.allocateDirect(batching
+                ? Math.max(BinaryFrame.MAX_BATCH_LENGTH, BinaryFrame.BATCH_HEADER_LENGTH + BinaryFrame.ENTRY_LENGTH_WIDTH + exchanges.maxLength())
+                : exchanges.maxLength());
     }
 
     /**
@@ -135,37 +748,381 @@ public class HelloUDPNonblockingClient implements HelloClient {
      *             <li>3 - request prefix</li>
      *             <li>4 - threads</li>
      *             <li>5 - requests in thread</li>
+     *             <li>6 - optional rate in requests per second for the open-loop mode</li>
      *             </ul>
      */
     public static void main(final String[] args) {
+        if (args != null && args.length == 6 && args[5] != null) {
+            final double rate;
+            try {
+                rate = Double.parseDouble(args[5]);
+            } catch (final NumberFormatException e) {
+                Log.error("Invalid rate: " + e.getMessage());
+                return;
+            }
+            Util.startClient(Arrays.copyOf(args, 5), () -> new HelloUDPNonblockingClient().setRate(rate));
+            return;
+        }
         Util.startClient(args, HelloUDPNonblockingClient::new);
     }
 
+    /**
+     * Sliding window of requests of one channel.
+     * Requests in {@code [completed, sent)} are in flight, per-request state is indexed by request modulo window.
+     * Requests are counted with {@code long} sequence numbers and sent with numbers that wrap modulo
+     * {@code 2^31}, see {@link #wire(long)}: a window is shorter than that, so a number in flight is found
+     * relative to {@code completed}.
+     */
     private static class ChannelInfo {
+        private final SelectionKey key;
         private final int index;
-        private int currentRequest;
+        private final long requests;
+        private long available;
+        private final BufferPool.Slot slot;
         private final ByteBuffer buffer;
+        private final boolean[] answered;
+        private final boolean[] toResend;
+        private final boolean[] retransmitted;
+        private final int[] backoff;
+        private final long[] sentAt;
+        private final LoadBalancer.Endpoint[] sentTo;
+        private final RequestTimer[] timers;
+        private long completed;
+        private long sent;
+        private long resendFrom;
 
-        ChannelInfo(final DatagramChannel channel, final int index) throws SocketException {
+        ChannelInfo(final SelectionKey key, final int index, final int window,
+                    final long requests, final long available, final BufferPool.Slot slot) {
+            this.key = key;
             this.index = index;
-            this.currentRequest = 0;
-            buffer = ByteBuffer.allocate(channel.socket().getReceiveBufferSize());
+            this.requests = requests;
+            this.available = available;
+            this.slot = slot;
+            buffer = slot.buffer();
+            answered = new boolean[window];
+            toResend = new boolean[window];
+            retransmitted = new boolean[window];
+            backoff = new int[window];
+            sentAt = new long[window];
+            sentTo = new LoadBalancer.Endpoint[window];
+            timers = new RequestTimer[window];
+            for (int i = 0; i < window; i++) {
+                timers[i] = new RequestTimer(this);
+            }
         }
 
-        public int getIndex() {
-            return index;
+        public SelectionKey getKey() {
+            return key;
         }
 
-        public int getCurrentRequest() {
-            return currentRequest;
+        public int getIndex() {
+            return index;
         }
 
-        public int increaseCurrentRequest() {
-            return ++currentRequest;
+        public long getCompleted() {
+            return completed;
         }
 
         public ByteBuffer getBuffer() {
             return buffer;
         }
+
+        public void release() {
+            slot.release();
+        }
+
+        public boolean canSend() {
+            return sent < Math.min(completed + answered.length, Math.min(available, requests));
+        }
+
+        public void extend() {
+            available++;
+        }
+
+        /**
+         * Returns the number the request is sent with: the sequence number modulo {@code 2^31}.
+         *
+         * @param sequence sequence number of the request
+         * @return request number
+         */
+        private static int wire(final long sequence) {
+            return (int) (sequence & Integer.MAX_VALUE);
+        }
+
+        /**
+         * Returns the sequence number of a request at or after the first one in flight.
+         *
+         * @param request request number
+         * @return sequence number
+         */
+        private long sequence(final int request) {
+            return completed + ((request - wire(completed)) & Integer.MAX_VALUE);
+        }
+
+        private int slot(final long sequence) {
+            return (int) (sequence % answered.length);
+        }
+
+        /**
+         * Checks that the request is sent and not answered.
+         *
+         * @param request request number, may be {@code -1} or out of the window
+         * @return <var>true</var> if the request is in flight
+         */
+        public boolean isInFlight(final int request) {
+            if (request < 0) {
+                return false;
+            }
+            final long sequence = sequence(request);
+            return sequence < sent && !answered[slot(sequence)];
+        }
+
+        /**
+         * Returns the next request to send: a timed out one first, then a new one if the window allows.
+         *
+         * @param now current {@link System#nanoTime()}
+         * @return request number or {@code -1} if there is nothing to send
+         */
+        public int nextToSend(final long now) {
+            for (; resendFrom < sent; resendFrom++) {
+                final int slot = slot(resendFrom);
+                if (toResend[slot]) {
+                    toResend[slot] = false;
+                    retransmitted[slot] = true;
+                    sentAt[slot] = now;
+                    return wire(resendFrom++);
+                }
+            }
+            if (!canSend()) {
+                return -1;
+            }
+            final int slot = slot(sent);
+            retransmitted[slot] = false;
+            backoff[slot] = 0;
+            sentAt[slot] = now;
+            return wire(sent++);
+        }
+
+        /**
+         * Returns the timer of the request in flight.
+         *
+         * @param request request number
+         * @return timer of the request
+         */
+        public RequestTimer getTimer(final int request) {
+            final RequestTimer timer = timers[slot(sequence(request))];
+            timer.request = request;
+            return timer;
+        }
+
+        /**
+         * Resets the backoff of the requests in flight after any datagram from a server, so that random losses
+         * are retransmitted after the plain timeout and only silence is backed off.
+         */
+        public void heard() {
+            Arrays.fill(backoff, 0);
+        }
+
+        /**
+         * Returns how many times in a row the timeout of the request in flight has expired,
+         * so that only the timeouts of lost requests are backed off.
+         *
+         * @param request request number
+         * @return number of expired timeouts
+         */
+        public int getBackoff(final int request) {
+            return backoff[slot(sequence(request))];
+        }
+
+        public void setSentTo(final int request, final LoadBalancer.Endpoint endpoint) {
+            sentTo[slot(sequence(request))] = endpoint;
+        }
+
+        public LoadBalancer.Endpoint getSentTo(final int request) {
+            return sentTo[slot(sequence(request))];
+        }
+
+        /**
+         * Marks the request to be sent again after its timeout has expired.
+         *
+         * @param request request number
+         */
+        public void expired(final int request) {
+            backoff[slot(sequence(request))]++;
+            markResend(request);
+        }
+
+        /**
+         * Returns the request in flight if it is the only one.
+         *
+         * @return request number or {@code -1} if there are no or several requests in flight
+         */
+        public int soleInFlight() {
+            return sent - completed == 1 && !toResend[slot(completed)] ? wire(completed) : -1;
+        }
+
+        public void markResend(final int request) {
+            if (isInFlight(request)) {
+                final long sequence = sequence(request);
+                toResend[slot(sequence)] = true;
+                resendFrom = Math.min(resendFrom, sequence);
+            }
+        }
+
+        /**
+         * Marks the request answered and slides the window over the answered prefix.
+         * The reply is accounted by the balancer with the round-trip time of a request sent once,
+         * the time since the last sending is recorded in the metrics.
+         *
+         * @param request  number of the answered request, may be out of the window
+         * @param now      current {@link System#nanoTime()}
+         * @param balancer balancer the request was sent by
+         * @param metrics  metrics of the client
+         * @return <var>true</var> if the request was in flight
+         */
+        public boolean acknowledge(final int request, final long now,
+                                   final LoadBalancer balancer, final Metrics metrics) {
+            if (!isInFlight(request)) {
+                return false;
+            }
+            final int slot = slot(sequence(request));
+            balancer.answered(sentTo[slot], retransmitted[slot] ? -1 : now - sentAt[slot]);
+            metrics.latency(now - sentAt[slot]);
+            complete(slot);
+            return true;
+        }
+
+        /**
+         * Gives up the request without a reply and slides the window as if it were answered.
+         *
+         * @param request number of the request taken by {@link #nextToSend(long)}
+         */
+        public void abandon(final int request) {
+            if (isInFlight(request)) {
+                complete(slot(sequence(request)));
+            }
+        }
+
+        private void complete(final int slot) {
+            answered[slot] = true;
+            toResend[slot] = false;
+            while (completed < sent && answered[slot(completed)]) {
+                answered[slot(completed)] = false;
+                completed++;
+            }
+            resendFrom = Math.max(resendFrom, completed);
+        }
+    }
+
+    /**
+     * What the requests of the client are and what happens to their replies. By default requests are encoded
+     * by a {@link RequestCodec} and replies are only validated, {@link HelloUDPAsyncClient} sends the payloads
+     * of its callers and completes their futures. Called on the thread running {@link #serve()}.
+     * <p>
+     * Requests of a channel are numbered from {@code 0} in the order they become available,
+     * the number after {@link Integer#MAX_VALUE} is {@code 0} again.
+     */
+    interface Exchanges {
+        /**
+         * Returns the maximal length of an encoded request.
+         *
+         * @return number of bytes enough for any request
+         */
+        int maxLength();
+
+        /**
+         * Writes the request at the position of the buffer, every time it is sent.
+         *
+         * @param buffer  where to write
+         * @param channel channel number
+         * @param request request number in the channel
+         */
+        void encode(ByteBuffer buffer, int channel, int request);
+
+        /**
+         * Finds the request number the reply answers, the buffer is not changed.
+         *
+         * @param reply   received reply
+         * @param channel channel number
+         * @return request number or {@code -1} if the reply is not correct
+         */
+        int decode(ByteBuffer reply, int channel);
+
+        /**
+         * Checks before every sending that the request is still wanted. A request that is not
+         * is abandoned without a reply and frees its place in the window.
+         *
+         * @param channel channel number
+         * @param request request number in the channel
+         * @return <var>false</var> to abandon the request
+         */
+        default boolean isPending(final int channel, final int request) {
+            return true;
+        }
+
+        /**
+         * Accepts the first correct reply to the request.
+         *
+         * @param channel channel number
+         * @param request request number in the channel
+         * @param reply   reply between the position and the limit, must not be changed
+         */
+        default void answered(final int channel, final int request, final ByteBuffer reply) {
+        }
+
+        /**
+         * Called before every selection, may make new requests available with {@link #extend(int)}.
+         *
+         * @return <var>false</var> to close the channels and stop
+         */
+        default boolean update() {
+            return true;
+        }
+
+        /**
+         * Called when the channel is closed, after an error or when all its requests are answered.
+         *
+         * @param channel channel number
+         */
+        default void closed(final int channel) {
+        }
+    }
+
+    /**
+     * Requests {@code <prefix><thread>_<request>} of {@link #run(String, int, String, int, int)}.
+     */
+    private static class CodecExchanges implements Exchanges {
+        private final RequestCodec codec;
+
+        CodecExchanges(final RequestCodec codec) {
+            this.codec = codec;
+        }
+
+        @Override
+        public int maxLength() {
+            return codec.maxLength();
+        }
+
+        @Override
+        public void encode(final ByteBuffer buffer, final int channel, final int request) {
+            codec.encode(buffer, channel, request);
+        }
+
+        @Override
+        public int decode(final ByteBuffer reply, final int channel) {
+            return codec.decode(reply, channel);
+        }
+    }
+
+    /**
+     * Deadline of a request in flight.
+     */
+    private static class RequestTimer extends TimerWheel.Timeout {
+        private final ChannelInfo channelInfo;
+        private int request;
+
+        RequestTimer(final ChannelInfo channelInfo) {
+            this.channelInfo = channelInfo;
+        }
     }
 }
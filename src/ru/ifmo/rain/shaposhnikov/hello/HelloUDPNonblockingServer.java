@@ -2,136 +2,376 @@ package ru.ifmo.rain.shaposhnikov.hello;
 
 import info.kgeorgiy.java.advanced.hello.HelloServer;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 
 /**
- * NIO server returns "Hello, {@code <request>}" {@link String}
+ * NIO server replying to requests with a {@link RequestHandler}, "Hello, {@code <request>}" by default
  *
  * @author Boris Shaposhnikov
  */
 public class HelloUDPNonblockingServer implements HelloServer {
-    private Selector selector;
-    private DatagramChannel serverChannel;
+    private final List<Reactor> reactors = new ArrayList<>();
+    private int reactorsCount = 1;
 
-    private ExecutorService threadPool;
-    private ExecutorService mainWorker;
+    /**
+     * Default number of datagrams received and sent per selector wakeup.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
+    private int readBatch = DEFAULT_BATCH_SIZE;
+    private int writeBatch = DEFAULT_BATCH_SIZE;
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private ReplyCache replyCache;
+    private RateLimiter rateLimiter;
+    private RequestHandler handler = new FramingHandler(new HelloHandler());
+    private final Metrics metrics = new Metrics();
+    private int highWatermark;
+    private int lowWatermark = -1;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.PAUSE_READING;
+
+    /**
+     * Reply sent to new requests under {@link OverloadPolicy#REPLY_BUSY}.
+     */
+    public static final String BUSY_REPLY = "Busy";
 
-    private final Queue<DatagramPacket> toWrite = new ConcurrentLinkedQueue<>();
+    private WaitStrategy waitStrategy = WaitStrategy.BLOCKING;
+    private DispatchMode dispatchMode = DispatchMode.POOL;
 
-    Deque<ByteBuffer> freeBuffers = new ConcurrentLinkedDeque<>();
+    /**
+     * Default maximal smoothed handler time for handling requests on the selector thread.
+     */
+    public static final long DEFAULT_INLINE_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+
+    /**
+     * Default maximal number of requests handled on the selector thread per wakeup.
+     */
+    public static final int DEFAULT_INLINE_BATCH = 16;
+
+    /**
+     * Default maximal number of other requests of a reactor in progress for handling requests on the selector thread.
+     */
+    public static final int DEFAULT_INLINE_DEPTH = 0;
+
+    private long inlineNanos = DEFAULT_INLINE_NANOS;
+    private int inlineBatch = DEFAULT_INLINE_BATCH;
+    private int inlineDepth = DEFAULT_INLINE_DEPTH;
+    private long selectSpinNanos;
+
+    /**
+     * Requests received by all reactors, taken by workers: one queue shared by all workers
+     * or a queue per worker under {@link DispatchMode#AFFINITY}. Every queue can hold every packet
+     * of every reactor, so it never overflows.
+     */
+    private final List<RingBuffer<Reactor.Packet>> requests = new ArrayList<>();
+    private ExecutorService workers;
+    private ExecutorService mainWorker;
 
     private final Consumer<DatagramChannel> CLOSE_CHANNEL = Util::tryClose;
 
-    private void response(final SelectionKey key,
-                          final ByteBuffer buffer,
-                          final SocketAddress address) {
-        final String request = Util.read(buffer);
-        final byte[] response = ("Hello, " + request).getBytes(Util.CHARSET);
-        toWrite.add(new DatagramPacket(response, response.length, address));
-        freeBuffers.addFirst(buffer);
-        key.interestOps(SelectionKey.OP_WRITE);
-        selector.wakeup();
+    /**
+     * Sets the number of reactors. Every reactor owns a {@link DatagramChannel} bound to the server port
+     * with {@link StandardSocketOptions#SO_REUSEPORT}, a {@link Selector}, a thread and a buffer pool,
+     * so the kernel spreads incoming datagrams across them. Must be called before {@link #start(int, int)}.
+     *
+     * @param reactors number of reactors, {@code 1} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setReactors(final int reactors) {
+        if (reactors < 1) {
+            throw new IllegalArgumentException("Reactors count must be a positive number");
+        }
+        this.reactorsCount = reactors;
+        return this;
     }
 
-    private void read(final SelectionKey key) {
-        final DatagramChannel channel = (DatagramChannel) key.channel();
-        if (freeBuffers.isEmpty()) {
-            key.interestOpsAnd(~SelectionKey.OP_READ);
-            return;
-        }
-        final ByteBuffer buffer = freeBuffers.removeFirst();
-        final SocketAddress address = Util.receive(channel, buffer, CLOSE_CHANNEL);
-        if (address == null) {
-            return;
+    /**
+     * Sets how many datagrams a reactor handles per selector wakeup: it receives until the channel
+     * has no more datagrams or {@code readBatch} are received, and sends up to {@code writeBatch}
+     * completed responses. Must be called before {@link #start(int, int)}.
+     *
+     * @param readBatch  maximal number of datagrams received per wakeup, {@link #DEFAULT_BATCH_SIZE} by default
+     * @param writeBatch maximal number of responses sent per wakeup, {@link #DEFAULT_BATCH_SIZE} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setBatchSize(final int readBatch, final int writeBatch) {
+        if (readBatch < 1 || writeBatch < 1) {
+            throw new IllegalArgumentException("Batch sizes must be positive numbers");
         }
-        threadPool.submit(() -> response(key, buffer, address));
+        this.readBatch = readBatch;
+        this.writeBatch = writeBatch;
+        return this;
     }
 
-    private void write(final SelectionKey key) {
-        final DatagramChannel channel = (DatagramChannel) key.channel();
-        if (toWrite.isEmpty()) {
-            key.interestOps(SelectionKey.OP_READ);
-            return;
-        }
-        final DatagramPacket packet = toWrite.poll();
-        if (!Util.send(channel, packet.getData(), packet.getSocketAddress(), CLOSE_CHANNEL)) {
-            return;
+    /**
+     * Sets the pool request and response buffers are taken from. A datagram longer than a slot
+     * of the pool is truncated. Must be called before {@link #start(int, int)}.
+     *
+     * @param bufferPool pool of direct buffers, {@link BufferPool#getDefault()} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setBufferPool(final BufferPool bufferPool) {
+        this.bufferPool = Objects.requireNonNull(bufferPool);
+        return this;
+    }
+
+    /**
+     * Answers retransmitted requests from the cache on the selector thread without passing them to workers.
+     * Must be called before {@link #start(int, int)}.
+     *
+     * @param replyCache cache of responses, <var>null</var> (no cache) by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setReplyCache(final ReplyCache replyCache) {
+        this.replyCache = replyCache;
+        return this;
+    }
+
+    /**
+     * Limits the request rate of every source address. Excess datagrams are dropped on the selector thread
+     * right after they are received and counted as shed. Must be called before {@link #start(int, int)}.
+     *
+     * @param rateLimiter limiter shared by the reactors, <var>null</var> (no limit) by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the handler computing replies in worker threads. Replies longer than a slot
+     * of the buffer pool are truncated. Must be called before {@link #start(int, int)}.
+     * <p>
+     * {@link BinaryFrame Binary frames} are answered in kind, the handler replies to their payload.
+     *
+     * @param handler request handler, {@link HelloHandler} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setHandler(final RequestHandler handler) {
+        this.handler = new FramingHandler(handler);
+        return this;
+    }
+
+    /**
+     * Sets the flow control watermarks of every reactor. A reactor has <var>high</var> request buffers,
+     * when all of them are in use it is overloaded and handles new datagrams by the {@link OverloadPolicy}
+     * until the number of requests in progress falls to <var>low</var>. Must be called before {@link #start(int, int)}.
+     *
+     * @param high maximal number of requests in progress per reactor, the number of threads by default
+     * @param low  number of requests in progress to leave the overload at, half of <var>high</var> by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setWatermarks(final int high, final int low) {
+        if (high < 1 || low < 0 || low >= high) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high");
         }
-        key .interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        this.highWatermark = high;
+        this.lowWatermark = low;
+        return this;
     }
 
-    private void run() {
-        while (true) {
-            try {
-                selector.select();
-                for (final Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
-                    final SelectionKey key = it.next();
-                    try {
-                        if (key.isReadable()) {
-                            read(key);
-                        }
-                        if (key.isValid() && key.isWritable()) {
-                            write(key);
-                        }
-                    } finally {
-                        it.remove();
-                    }
-                }
-            } catch (final IOException e) {
-                close();
-                System.err.println("Error during selecting: " + e.getMessage());
-                return;
-            }
+    /**
+     * Sets what to do with new datagrams while a reactor is overloaded.
+     * Must be called before {@link #start(int, int)}.
+     *
+     * @param overloadPolicy overload policy, {@link OverloadPolicy#PAUSE_READING} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setOverloadPolicy(final OverloadPolicy overloadPolicy) {
+        this.overloadPolicy = Objects.requireNonNull(overloadPolicy);
+        return this;
+    }
+
+    /**
+     * Sets how idle workers wait for requests. Spinning strategies hand requests over faster,
+     * but keep a core busy per worker. Must be called before {@link #start(int, int)}.
+     *
+     * @param waitStrategy wait strategy of workers, {@link WaitStrategy#BLOCKING} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setWaitStrategy(final WaitStrategy waitStrategy) {
+        this.waitStrategy = Objects.requireNonNull(waitStrategy);
+        return this;
+    }
+
+    /**
+     * Sets where requests are handled. Must be called before {@link #start(int, int)}.
+     *
+     * @param dispatchMode dispatch mode, {@link DispatchMode#POOL} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setDispatchMode(final DispatchMode dispatchMode) {
+        this.dispatchMode = Objects.requireNonNull(dispatchMode);
+        return this;
+    }
+
+    /**
+     * Sets when {@link DispatchMode#ADAPTIVE} handles requests on the selector thread,
+     * with {@link #DEFAULT_INLINE_DEPTH} queue depth.
+     *
+     * @param nanos maximal smoothed handler time in nanoseconds, {@link #DEFAULT_INLINE_NANOS} by default
+     * @param batch maximal number of requests handled inline per wakeup, {@link #DEFAULT_INLINE_BATCH} by default
+     * @return this server
+     * @see #setInlineLimits(long, int, int)
+     */
+    public HelloUDPNonblockingServer setInlineLimits(final long nanos, final int batch) {
+        return setInlineLimits(nanos, batch, DEFAULT_INLINE_DEPTH);
+    }
+
+    /**
+     * Sets when {@link DispatchMode#ADAPTIVE} handles requests on the selector thread: while the smoothed
+     * handler time, measured both inline and in workers, does not exceed <var>nanos</var>, for at most
+     * <var>batch</var> requests per wakeup, and while at most <var>depth</var> other requests of the reactor
+     * are queued for the workers, handled by them or waiting to be written. A backlog of datagrams
+     * that has spilled over to the workers is thus spread across them until they catch up.
+     * Must be called before {@link #start(int, int)}.
+     *
+     * @param nanos maximal smoothed handler time in nanoseconds, {@link #DEFAULT_INLINE_NANOS} by default
+     * @param batch maximal number of requests handled inline per wakeup, {@link #DEFAULT_INLINE_BATCH} by default
+     * @param depth maximal number of other requests in progress, {@link #DEFAULT_INLINE_DEPTH} by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setInlineLimits(final long nanos, final int batch, final int depth) {
+        if (nanos < 0 || batch < 0 || depth < 0) {
+            throw new IllegalArgumentException("Inline limits must be non-negative numbers");
         }
+        this.inlineNanos = nanos;
+        this.inlineBatch = batch;
+        this.inlineDepth = depth;
+        return this;
     }
 
-    @Override
-    public void start(final int port, final int threads) {
-        selector = Util.tryOpenSelector();
-        if (selector == null) {
-            return;
+    /**
+     * Sets how long a reactor polls its selector before blocking in {@link Selector#select()}.
+     * Polling avoids the park and wakeup on every datagram at low rates, but keeps a core busy
+     * while there is nothing to do. Must be called before {@link #start(int, int)}.
+     *
+     * @param spinNanos polling time in nanoseconds, {@code 0} (block right away) by default
+     * @return this server
+     */
+    public HelloUDPNonblockingServer setSelectSpin(final long spinNanos) {
+        if (spinNanos < 0) {
+            throw new IllegalArgumentException("Spin time must be a non-negative number");
         }
+        this.selectSpinNanos = spinNanos;
+        return this;
+    }
+
+    /**
+     * Returns the metrics of the server, published over JMX while the server is running.
+     *
+     * @return server metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
 
+    private static DatagramChannel openChannel(final int port, final boolean reusePort) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
         try {
-            serverChannel = DatagramChannel.open();
-            serverChannel.configureBlocking(false);
-            serverChannel.bind(new InetSocketAddress(port));
-            serverChannel.register(selector, SelectionKey.OP_READ);
+            channel.configureBlocking(false);
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port));
+            return channel;
         } catch (final IOException e) {
-            close();
-            System.err.println("Error during creating a datagram channel: " + e.getMessage());
-            return;
+            Util.tryClose(channel);
+            throw e;
         }
+    }
 
-        mainWorker = Executors.newSingleThreadExecutor();
-        threadPool = Executors.newFixedThreadPool(threads);
+    private static boolean isReusePortSupported() {
+        try (final DatagramChannel channel = DatagramChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (final IOException e) {
+            return false;
+        }
+    }
 
-        for (int i = 0; i < threads; i++) {
+    @Override
+    public void start(final int port, final int threads) {
+        int count = reactorsCount;
+        if (count > 1 && !isReusePortSupported()) {
+            Log.error("SO_REUSEPORT is not supported, falling back to a single reactor");
+            count = 1;
+        }
+
+        final int high = highWatermark > 0 ? highWatermark : threads;
+        final int low = lowWatermark >= 0 ? lowWatermark : high / 2;
+        int boundPort = port;
+        for (int i = 0; i < count; i++) {
+            final Reactor reactor = new Reactor();
+            reactors.add(reactor);
+            reactor.selector = Util.tryOpenSelector();
+            if (reactor.selector == null) {
+                close();
+                return;
+            }
             try {
-                freeBuffers.add(ByteBuffer.allocate(serverChannel.socket().getReceiveBufferSize()));
-            } catch (final SocketException e) {
+                reactor.channel = openChannel(boundPort, count > 1);
+                reactor.key = reactor.channel.register(reactor.selector, SelectionKey.OP_READ);
+                boundPort = ((InetSocketAddress) reactor.channel.getLocalAddress()).getPort();
+            } catch (final IOException e) {
                 close();
-                System.err.println("Error during allocating a buffer: " + e.getMessage());
+                Log.error("Error during creating a datagram channel: " + e.getMessage());
                 return;
             }
+            reactor.lowWatermark = low;
+            reactor.toWrite = new RingBuffer<>(high, WaitStrategy.BLOCKING);
+            reactor.freePackets = new ArrayDeque<>(high);
+            for (int j = 0; j < high; j++) {
+                final Reactor.Packet packet = reactor.new Packet();
+                reactor.packets.add(packet);
+                reactor.freePackets.add(packet);
+            }
+        }
+
+        mainWorker = Executors.newFixedThreadPool(count);
+        final int queues = dispatchMode == DispatchMode.AFFINITY ? threads : 1;
+        for (int i = 0; i < queues; i++) {
+            requests.add(new RingBuffer<>(high * count, waitStrategy));
+        }
+        workers = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            final RingBuffer<Reactor.Packet> queue = requests.get(i % queues);
+            workers.submit(() -> work(queue));
         }
-        mainWorker.submit(this::run);
+        final List<Reactor> started = List.copyOf(reactors);
+        metrics.setQueues(() -> started.stream().mapToLong(reactor -> reactor.toWrite.size()).sum(),
+                () -> started.stream().mapToLong(reactor -> reactor.freeCount).sum());
+        metrics.register(getClass());
+        reactors.forEach(reactor -> mainWorker.submit(reactor::run));
     }
 
     @Override
     public void close() {
-        Util.tryClose(selector);
-        Util.tryClose(serverChannel);
+        final List<Reactor> closed = new ArrayList<>(reactors);
+        reactors.clear();
+        for (final Reactor reactor : closed) {
+            Util.tryClose(reactor.selector);
+            Util.tryClose(reactor.channel);
+        }
 
         Util.tryShutdown(mainWorker);
-        Util.tryShutdown(threadPool);
+        Util.tryShutdown(workers);
+        closed.forEach(Reactor::releasePackets);
+        requests.clear();
+        metrics.unregister();
+    }
+
+    private static void work(final RingBuffer<Reactor.Packet> queue) {
+        for (Reactor.Packet packet = queue.take(); packet != null; packet = queue.take()) {
+            packet.run();
+        }
     }
 
     /**
@@ -145,4 +385,391 @@ public class HelloUDPNonblockingServer implements HelloServer {
     public static void main(final String[] args) {
         Util.startServer(args, HelloUDPNonblockingServer::new);
     }
+
+    /**
+     * Selector loop serving one of the channels bound to the server port.
+     */
+    private class Reactor {
+        private Selector selector;
+        private DatagramChannel channel;
+        private SelectionKey key;
+
+        private final List<Packet> packets = new ArrayList<>();
+        /**
+         * Completed packets returned by workers. Holds every packet of the reactor, so it never overflows.
+         */
+        private RingBuffer<Packet> toWrite;
+        /**
+         * Touched only by the selector thread: workers return packets through {@link #toWrite}.
+         */
+        private Queue<Packet> freePackets;
+        /**
+         * Set by the first worker completing a response after the selector woke up,
+         * so that one {@link Selector#wakeup()} covers all responses completed meanwhile.
+         */
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private final BooleanSupplier woken = wakeupPending::get;
+        /**
+         * Handles the ready key without the selected-key set, which allocates an entry per selection.
+         */
+        private final Consumer<SelectionKey> selected = ready -> {
+            if (ready.isReadable()) {
+                read();
+            }
+        };
+        /**
+         * Size of {@link #freePackets} published for {@link Metrics}.
+         */
+        private volatile int freeCount;
+
+        private int lowWatermark;
+        /**
+         * Set when all packets are in use, cleared when the number of packets in use falls to the low watermark.
+         */
+        private boolean overloaded;
+        private final BufferPool.Slot scratchSlot = bufferPool.acquire();
+        private final ByteBuffer busy = ByteBuffer.wrap(BUSY_REPLY.getBytes(Util.CHARSET));
+        /**
+         * Smoothed handler time in nanoseconds for {@link DispatchMode#ADAPTIVE}, updated by the selector thread only.
+         */
+        private long handlerCost;
+        /**
+         * Queue of the last request dropped by {@link OverloadPolicy#DROP_OLDEST}, so that drops rotate across workers.
+         */
+        private int dropQueue;
+        private boolean released;
+
+        private void releasePackets() {
+            if (released) {
+                return;
+            }
+            released = true;
+            packets.forEach(Packet::release);
+            packets.clear();
+            scratchSlot.release();
+        }
+
+        /**
+         * Takes a request waiting for a worker, the oldest one if workers share a queue.
+         */
+        private Packet pollOldest() {
+            for (int i = 0; i < requests.size(); i++) {
+                dropQueue = (dropQueue + 1) % requests.size();
+                final Packet packet = requests.get(dropQueue).poll();
+                if (packet != null) {
+                    return packet;
+                }
+            }
+            return null;
+        }
+
+        private Packet freePacket() {
+            if (!overloaded) {
+                final Packet packet = freePackets.poll();
+                if (packet != null) {
+                    return packet;
+                }
+                overloaded = true;
+            }
+            return null;
+        }
+
+        /**
+         * Sheds the oldest request waiting for a worker to make room for a received datagram.
+         * The packet may belong to another reactor sharing the queue, it is then reused for the datagram
+         * and returned to its reactor when done, see {@link #toWriter(Packet)}.
+         *
+         * @return the shed packet or <var>null</var> if no request is waiting
+         */
+        private Packet replaceOldest() {
+            if (overloadPolicy != OverloadPolicy.DROP_OLDEST) {
+                return null;
+            }
+            final Packet packet = pollOldest();
+            if (packet != null) {
+                metrics.shed();
+            }
+            return packet;
+        }
+
+        /**
+         * Passes the packet to the reactor it belongs to for writing, waking that reactor up if it is another one.
+         */
+        private void toWriter(final Packet packet) {
+            if (packet.getReactor() == this) {
+                toWrite.offer(packet);
+            } else {
+                packet.ready();
+            }
+        }
+
+        /**
+         * Sheds a datagram received without a packet to process it in.
+         */
+        private void shed(final SocketAddress address) {
+            metrics.shed();
+            if (overloadPolicy == OverloadPolicy.REPLY_BUSY) {
+                if (Util.send(channel, busy, address, CLOSE_CHANNEL)) {
+                    metrics.sent(busy.remaining());
+                } else {
+                    metrics.sendError();
+                }
+            }
+        }
+
+        private void read() {
+            int inlined = 0;
+            for (int i = 0; i < readBatch; i++) {
+                Packet packet = freePacket();
+                if (packet == null) {
+                    if (overloadPolicy == OverloadPolicy.PAUSE_READING) {
+                        return;
+                    }
+                    // a waiting request is shed only for a datagram actually received
+                    final ByteBuffer scratch = scratchSlot.buffer();
+                    scratch.clear();
+                    final SocketAddress address = Util.receive(channel, scratch, CLOSE_CHANNEL);
+                    if (address == null) {
+                        if (!channel.isOpen()) {
+                            metrics.receiveError();
+                        }
+                        return;
+                    }
+                    packet = replaceOldest();
+                    if (packet == null) {
+                        metrics.received(scratch.position());
+                        shed(address);
+                        continue;
+                    }
+                    scratch.flip();
+                    packet.request.clear();
+                    packet.request.put(scratch);
+                    packet.address = address;
+                } else {
+                    packet.request.clear();
+                    packet.address = Util.receive(channel, packet.request, CLOSE_CHANNEL);
+                    if (packet.address == null) {
+                        freePackets.add(packet);
+                        if (!channel.isOpen()) {
+                            metrics.receiveError();
+                        }
+                        return;
+                    }
+                }
+                packet.receivedAt = System.nanoTime();
+                metrics.received(packet.request.position());
+                if (rateLimiter != null && !rateLimiter.tryAcquire(packet.address, packet.receivedAt)) {
+                    metrics.shed();
+                    packet.address = null;
+                    if (packet.getReactor() == this) {
+                        freePackets.add(packet);
+                    } else {
+                        packet.ready();
+                    }
+                    continue;
+                }
+                packet.prepare();
+                if (packet.isCached()) {
+                    toWriter(packet);
+                    continue;
+                }
+                // a packet of another reactor is never completed here, its free list belongs to that reactor
+                if (dispatchMode == DispatchMode.ADAPTIVE && inlined < inlineBatch && handlerCost <= inlineNanos
+                        && inProgress() - 1 <= inlineDepth && packet.getReactor() == this) {
+                    inlined++;
+                    metrics.inlined();
+                    packet.handle();
+                    complete(packet);
+                    continue;
+                }
+                requests.get(requests.size() == 1 ? 0 : Util.shard(packet.address, requests.size())).offer(packet);
+            }
+        }
+
+        /**
+         * Returns the number of packets of the reactor in use: queued for workers, handled,
+         * waiting to be written or being received.
+         */
+        private int inProgress() {
+            return packets.size() - freePackets.size();
+        }
+
+        private void write() {
+            for (int i = 0; i < writeBatch; i++) {
+                final Packet packet = toWrite.poll();
+                if (packet == null) {
+                    return;
+                }
+                if (!complete(packet)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Sends the response of the packet, if any, and frees the packet.
+         *
+         * @return <var>false</var> if the response could not be sent
+         */
+        private boolean complete(final Packet packet) {
+            if (packet.handlerNanos >= 0) {
+                handlerCost += (packet.handlerNanos - handlerCost) / 8;
+            }
+            // the address is cleared if the handler failed or the request was dropped
+            final boolean sent = packet.address == null
+                    || Util.send(channel, packet.response, packet.address, CLOSE_CHANNEL);
+            if (packet.address != null) {
+                if (sent) {
+                    metrics.sent(packet.response.remaining());
+                    metrics.latency(System.nanoTime() - packet.receivedAt);
+                } else {
+                    metrics.sendError();
+                }
+            }
+            packet.address = null;
+            freePackets.add(packet);
+            return sent;
+        }
+
+        /**
+         * Reads unless reading is paused by the overload and writes while there are completed responses,
+         * so the next selection returns immediately if a batch did not drain everything.
+         */
+        private void updateInterest() {
+            freeCount = freePackets.size();
+            if (overloaded && inProgress() <= lowWatermark) {
+                overloaded = false;
+            }
+            if (!key.isValid()) {
+                return;
+            }
+            final boolean reading = overloadPolicy != OverloadPolicy.PAUSE_READING || !overloaded;
+            final int ops = (reading ? SelectionKey.OP_READ : 0)
+                    | (toWrite.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            if (key.interestOps() != ops) {
+                key.interestOps(ops);
+            }
+        }
+
+        private void wakeup() {
+            if (!wakeupPending.get() && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+
+        private void run() {
+            while (true) {
+                try {
+                    Util.select(selector, 0, selectSpinNanos, woken, selected);
+                    // responses completed from now on need a new wakeup
+                    wakeupPending.set(false);
+                    if (key.isValid()) {
+                        write();
+                    }
+                    updateInterest();
+                } catch (final IOException e) {
+                    close();
+                    Log.error("Error during selecting: " + e.getMessage());
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Preallocated request and response buffers travelling from the reactor to a worker and back.
+         */
+        private class Packet implements Runnable {
+            private final BufferPool.Slot requestSlot = bufferPool.acquire();
+            private final BufferPool.Slot responseSlot = bufferPool.acquire();
+            private final ByteBuffer request = requestSlot.buffer();
+            private final ByteBuffer response = responseSlot.buffer();
+            private final ByteBuffer requestView = request.asReadOnlyBuffer();
+            private SocketAddress address;
+            private long receivedAt;
+            /**
+             * Time spent in the handler, measured only by {@link DispatchMode#ADAPTIVE}, {@code -1} if not measured.
+             */
+            private long handlerNanos = -1;
+
+            private void release() {
+                requestSlot.release();
+                responseSlot.release();
+            }
+
+            private Reactor getReactor() {
+                return Reactor.this;
+            }
+
+            /**
+             * Passes the packet to its reactor for writing from any thread.
+             */
+            private void ready() {
+                toWrite.offer(this);
+                wakeup();
+            }
+
+            /**
+             * Limits the received text request by the first 0 byte, frames and batches may contain 0 bytes.
+             */
+            private void prepare() {
+                handlerNanos = -1;
+                request.flip();
+                if (BinaryFrame.isFrame(request) || BinaryFrame.isBatch(request)) {
+                    return;
+                }
+                for (int i = 0; i < request.limit(); i++) {
+                    if (request.get(i) == 0) {
+                        request.limit(i);
+                        break;
+                    }
+                }
+            }
+
+            /**
+             * Copies the cached response to the request, if any, into the response buffer.
+             *
+             * @return <var>true</var> if the response is ready to be sent
+             */
+            private boolean isCached() {
+                if (replyCache == null) {
+                    return false;
+                }
+                final byte[] cached = replyCache.get(address, request);
+                if (cached == null) {
+                    return false;
+                }
+                response.clear();
+                response.put(cached).flip();
+                return true;
+            }
+
+            /**
+             * Computes the response, clears the address if the handler failed.
+             */
+            private void handle() {
+                final long start = dispatchMode == DispatchMode.ADAPTIVE ? System.nanoTime() : 0;
+                response.clear();
+                requestView.limit(request.limit()).position(request.position());
+                try {
+                    handler.handle(requestView, response);
+                    response.flip();
+                    if (replyCache != null) {
+                        replyCache.put(address, request, response);
+                    }
+                } catch (final RuntimeException e) {
+                    Log.error("Error during handling a request: " + e.getMessage());
+                    address = null;
+                }
+                if (dispatchMode == DispatchMode.ADAPTIVE) {
+                    handlerNanos = System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public void run() {
+                handle();
+                ready();
+            }
+        }
+    }
 }
@@ -4,30 +4,320 @@ import info.kgeorgiy.java.advanced.hello.HelloServer;
 import ru.ifmo.rain.shaposhnikov.hello.Util.ExchangeDatagramPacket;
 
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Server returns "Hello, {@code <request>}" {@link String}
+ * Server replying to requests with a {@link RequestHandler}, "Hello, {@code <request>}" by default
  *
  * @author Boris Shaposhnikov
  */
 public class HelloUDPServer implements HelloServer {
     private DatagramSocket datagramSocket;
     private ExecutorService threadPool;
+    private ExecutorService handlers;
     private int bufferSize;
+    private boolean virtualThreads;
+    private boolean affinity;
+    private final List<Lane> lanes = new ArrayList<>();
 
-    private String response(final String request) {
-        return "Hello, " + request;
+    /**
+     * Number of requests waiting for one worker in the affinity mode, the excess is discarded.
+     */
+    public static final int AFFINITY_QUEUE_SIZE = 256;
+
+    /**
+     * Default maximal number of requests handled at once in the virtual-thread mode.
+     */
+    public static final int DEFAULT_VIRTUAL_TASKS = 32768;
+
+    private int maxVirtualTasks = DEFAULT_VIRTUAL_TASKS;
+
+    /**
+     * Handled requests of the virtual-thread mode with their buffers, reused by the receiving threads.
+     */
+    private RingBuffer<Task> tasks;
+
+    /**
+     * Number of tasks created so far, they are created on demand up to {@link #maxVirtualTasks}.
+     */
+    private final AtomicInteger createdTasks = new AtomicInteger();
+
+    private ReplyCache replyCache;
+    private RateLimiter rateLimiter;
+    private RequestHandler handler = new FramingHandler(new HelloHandler());
+    private final int replySize = BufferPool.getDefault().getSlotSize();
+    private final Metrics metrics = new Metrics();
+
+    /**
+     * Switches the server to the virtual-thread-per-request mode. The <var>threads</var> passed to
+     * {@link #start(int, int)} only receive datagrams and every request is processed and answered
+     * in its own virtual thread, or by as many platform threads if virtual threads are not available.
+     * Requests are copied into tasks with their own buffers, which are created on demand and reused,
+     * see {@link #setVirtualTasks(int)}. Requests longer than a slot of {@link BufferPool#getDefault()}
+     * are discarded. Must be called before {@link #start(int, int)}.
+     *
+     * @param virtualThreads <var>true</var> to process requests in virtual threads
+     * @return this server
+     */
+    public HelloUDPServer setVirtualThreads(final boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /**
+     * Sets the maximal number of requests handled at once in the virtual-thread mode, requests arriving
+     * while that many are handled are discarded. Every task takes two slots of {@link BufferPool#getDefault()}
+     * of heap once it is created. Must be called before {@link #start(int, int)}.
+     *
+     * @param maxTasks number of concurrent requests, {@link #DEFAULT_VIRTUAL_TASKS} by default
+     * @return this server
+     */
+    public HelloUDPServer setVirtualTasks(final int maxTasks) {
+        if (maxTasks <= 0) {
+            throw new IllegalArgumentException("Number of tasks must be a positive number");
+        }
+        this.maxVirtualTasks = maxTasks;
+        return this;
+    }
+
+    /**
+     * Switches the server to the affinity mode. One thread receives datagrams and hands each of them
+     * to one of the <var>threads</var> workers chosen by the source address with {@link Util#shard},
+     * through a queue of the worker. Requests of one client are handled in order by one thread.
+     * Requests longer than a slot of {@link BufferPool#getDefault()} are truncated. Takes precedence
+     * over {@link #setVirtualThreads(boolean)}. Must be called before {@link #start(int, int)}.
+     *
+     * @param affinity <var>true</var> to dispatch requests by the source address
+     * @return this server
+     */
+    public HelloUDPServer setAffinity(final boolean affinity) {
+        this.affinity = affinity;
+        return this;
+    }
+
+    /**
+     * Answers retransmitted requests from the cache instead of processing them again.
+     * Must be called before {@link #start(int, int)}.
+     *
+     * @param replyCache cache of responses, <var>null</var> (no cache) by default
+     * @return this server
+     */
+    public HelloUDPServer setReplyCache(final ReplyCache replyCache) {
+        this.replyCache = replyCache;
+        return this;
+    }
+
+    /**
+     * Limits the request rate of every source address. Excess datagrams are dropped by the receiving thread
+     * before they are handled or passed on and counted as shed. Must be called before {@link #start(int, int)}.
+     *
+     * @param rateLimiter limiter shared by the threads, <var>null</var> (no limit) by default
+     * @return this server
+     */
+    public HelloUDPServer setRateLimiter(final RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the handler computing replies. Replies longer than a slot of {@link BufferPool#getDefault()}
+     * are truncated. Must be called before {@link #start(int, int)}.
+     * <p>
+     * {@link BinaryFrame Binary frames} are answered in kind, the handler replies to their payload.
+     *
+     * @param handler request handler, {@link HelloHandler} by default
+     * @return this server
+     */
+    public HelloUDPServer setHandler(final RequestHandler handler) {
+        this.handler = new FramingHandler(handler);
+        return this;
+    }
+
+    /**
+     * Returns the metrics of the server, published over JMX while the server is running.
+     *
+     * @return server metrics
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Writes the reply to the request into the buffer and puts it into the cache.
+     *
+     * @param view read-only view of the request buffer, reused so that no view is created per request
+     * @return <var>true</var> if the reply is ready, <var>false</var> if the handler failed
+     */
+    private boolean reply(final ByteBuffer request, final ByteBuffer view,
+                          final SocketAddress address, final ByteBuffer response) {
+        response.clear();
+        view.limit(request.limit()).position(request.position());
+        try {
+            handler.handle(view, response);
+        } catch (final RuntimeException e) {
+            Log.error("Error during handling a request: " + e.getMessage());
+            return false;
+        }
+        response.flip();
+        if (replyCache != null) {
+            replyCache.put(address, request, response);
+        }
+        return true;
+    }
+
+    private boolean allowed(final SocketAddress address, final long receivedAt) {
+        if (rateLimiter == null || rateLimiter.tryAcquire(address, receivedAt)) {
+            return true;
+        }
+        metrics.shed();
+        return false;
+    }
+
+    private byte[] cached(final ByteBuffer request, final SocketAddress address) {
+        return replyCache == null ? null : replyCache.get(address, request);
+    }
+
+    private ByteBuffer received(final ExchangeDatagramPacket packet) {
+        final ByteBuffer request = packet.receiveBytes(datagramSocket);
+        if (request != null) {
+            metrics.received(request.remaining());
+        } else if (!datagramSocket.isClosed()) {
+            metrics.receiveError();
+        }
+        return request;
+    }
+
+    private void send(final ExchangeDatagramPacket packet, final ByteBuffer response, final long receivedAt) {
+        if (packet.send(response, datagramSocket)) {
+            metrics.sent(response.remaining());
+            metrics.latency(System.nanoTime() - receivedAt);
+        } else {
+            metrics.sendError();
+        }
     }
 
     private void listen() {
         final ExchangeDatagramPacket packet = new ExchangeDatagramPacket(bufferSize);
+        final ByteBuffer view = ByteBuffer.wrap(packet.getDatagramPacket().getData()).asReadOnlyBuffer();
+        final ByteBuffer response = ByteBuffer.allocate(replySize);
         while (!datagramSocket.isClosed() && !Thread.currentThread().isInterrupted()) {
-            final String request = packet.receive(datagramSocket);
-            packet.send(response(request), datagramSocket);
+            final ByteBuffer request = received(packet);
+            if (request == null) {
+                continue;
+            }
+            final long receivedAt = System.nanoTime();
+            final SocketAddress address = packet.getDatagramPacket().getSocketAddress();
+            if (!allowed(address, receivedAt)) {
+                continue;
+            }
+            final byte[] cached = cached(request, address);
+            if (cached != null) {
+                send(packet, ByteBuffer.wrap(cached), receivedAt);
+            } else if (reply(request, view, address, response)) {
+                send(packet, response, receivedAt);
+            }
+        }
+    }
+
+    private void dispatch() {
+        final ExchangeDatagramPacket packet = new ExchangeDatagramPacket(bufferSize);
+        while (!datagramSocket.isClosed() && !Thread.currentThread().isInterrupted()) {
+            final ByteBuffer received = received(packet);
+            if (datagramSocket.isClosed()) {
+                return;
+            }
+            if (received == null) {
+                continue;
+            }
+            final long receivedAt = System.nanoTime();
+            final SocketAddress address = packet.getDatagramPacket().getSocketAddress();
+            if (!allowed(address, receivedAt)) {
+                continue;
+            }
+            final byte[] cached = cached(received, address);
+            if (cached != null) {
+                send(packet, ByteBuffer.wrap(cached), receivedAt);
+                continue;
+            }
+            if (received.remaining() > replySize) {
+                // a truncated request would get a wrong reply
+                metrics.shed();
+                continue;
+            }
+            Task task = tasks.poll();
+            if (task == null && (task = newTask()) == null) {
+                metrics.shed();
+                continue;
+            }
+            task.request.clear();
+            task.request.put(received).flip();
+            task.address = address;
+            task.receivedAt = receivedAt;
+            try {
+                handlers.execute(task);
+            } catch (final RejectedExecutionException e) {
+                task.address = null;
+                tasks.offer(task);
+                if (handlers.isShutdown()) {
+                    return;
+                }
+                metrics.shed();
+            }
+        }
+    }
+
+    /**
+     * Creates one more task of the virtual-thread mode unless {@link #maxVirtualTasks} are created,
+     * so that memory grows with the concurrency actually reached.
+     *
+     * @return new task or <var>null</var> if the limit is reached
+     */
+    private Task newTask() {
+        for (int created = createdTasks.get(); created < maxVirtualTasks; created = createdTasks.get()) {
+            if (createdTasks.compareAndSet(created, created + 1)) {
+                return new Task();
+            }
+        }
+        return null;
+    }
+
+    private void route() {
+        final ExchangeDatagramPacket packet = new ExchangeDatagramPacket(bufferSize);
+        while (!datagramSocket.isClosed() && !Thread.currentThread().isInterrupted()) {
+            final ByteBuffer received = received(packet);
+            if (received == null) {
+                continue;
+            }
+            final long receivedAt = System.nanoTime();
+            final SocketAddress address = packet.getDatagramPacket().getSocketAddress();
+            if (!allowed(address, receivedAt)) {
+                continue;
+            }
+            final byte[] cached = cached(received, address);
+            if (cached != null) {
+                send(packet, ByteBuffer.wrap(cached), receivedAt);
+                continue;
+            }
+            final Lane lane = lanes.get(Util.shard(address, lanes.size()));
+            final Request request = lane.free.poll();
+            if (request == null) {
+                metrics.shed();
+                continue;
+            }
+            request.buffer.clear();
+            request.buffer.put(received.limit(Math.min(received.limit(), request.buffer.capacity()))).flip();
+            request.address = address;
+            request.receivedAt = receivedAt;
+            lane.requests.offer(request);
         }
     }
 
@@ -37,12 +327,28 @@ public class HelloUDPServer implements HelloServer {
             datagramSocket = new DatagramSocket(port);
             bufferSize = datagramSocket.getReceiveBufferSize();
         } catch (final SocketException e) {
-            System.err.println("Error during creating a datagram socket: " + e.getMessage());
+            Log.error("Error during creating a datagram socket: " + e.getMessage());
+            return;
+        }
+        metrics.register(getClass());
+        if (affinity) {
+            threadPool = Executors.newFixedThreadPool(threads + 1);
+            for (int i = 0; i < threads; i++) {
+                final Lane lane = new Lane();
+                lanes.add(lane);
+                threadPool.submit(lane::run);
+            }
+            threadPool.submit(this::route);
             return;
         }
         threadPool = Executors.newFixedThreadPool(threads);
+        if (virtualThreads) {
+            handlers = Util.newVirtualThreadPerTaskExecutor(threads, maxVirtualTasks);
+            tasks = new RingBuffer<>(maxVirtualTasks, WaitStrategy.BLOCKING);
+            createdTasks.set(0);
+        }
         for (int i = 0; i < threads; i++) {
-            threadPool.submit(this::listen);
+            threadPool.submit(virtualThreads ? this::dispatch : this::listen);
         }
     }
 
@@ -50,6 +356,9 @@ public class HelloUDPServer implements HelloServer {
     public void close() {
         Util.tryClose(datagramSocket);
         Util.tryShutdown(threadPool);
+        Util.tryShutdown(handlers);
+        lanes.clear();
+        metrics.unregister();
     }
 
     /**
@@ -63,4 +372,74 @@ public class HelloUDPServer implements HelloServer {
     public static void main(final String[] args) {
         Util.startServer(args, HelloUDPServer::new);
     }
+
+    /**
+     * A request received in the affinity mode.
+     */
+    private static final class Request {
+        private final ByteBuffer buffer;
+        private final ByteBuffer view;
+        private SocketAddress address;
+        private long receivedAt;
+
+        Request(final int size) {
+            buffer = ByteBuffer.allocate(size);
+            view = buffer.asReadOnlyBuffer();
+        }
+    }
+
+    /**
+     * A request of the virtual-thread mode with the buffers to answer it, returned to {@link #tasks} when done.
+     */
+    private final class Task implements Runnable {
+        private final ByteBuffer request = ByteBuffer.allocate(replySize);
+        private final ByteBuffer view = request.asReadOnlyBuffer();
+        private final ByteBuffer response = ByteBuffer.allocate(replySize);
+        private final ExchangeDatagramPacket packet = new ExchangeDatagramPacket(0);
+        private SocketAddress address;
+        private long receivedAt;
+
+        @Override
+        public void run() {
+            try {
+                if (reply(request, view, address, response)) {
+                    packet.getDatagramPacket().setSocketAddress(address);
+                    send(packet, response, receivedAt);
+                }
+            } finally {
+                address = null;
+                tasks.offer(this);
+            }
+        }
+    }
+
+    /**
+     * Worker of the affinity mode with its own queue, requests and buffers.
+     */
+    private final class Lane {
+        private final RingBuffer<Request> requests = new RingBuffer<>(AFFINITY_QUEUE_SIZE, WaitStrategy.BLOCKING);
+        /**
+         * Requests handled by the worker, reused by the receiving thread.
+         */
+        private final RingBuffer<Request> free = new RingBuffer<>(AFFINITY_QUEUE_SIZE, WaitStrategy.BLOCKING);
+        private final ByteBuffer response = ByteBuffer.allocate(replySize);
+        private final ExchangeDatagramPacket packet = new ExchangeDatagramPacket(0);
+
+        Lane() {
+            for (int i = 0; i < AFFINITY_QUEUE_SIZE; i++) {
+                free.offer(new Request(replySize));
+            }
+        }
+
+        private void run() {
+            for (Request request = requests.take(); request != null; request = requests.take()) {
+                if (reply(request.buffer, request.view, request.address, response)) {
+                    packet.getDatagramPacket().setSocketAddress(request.address);
+                    send(packet, response, request.receivedAt);
+                }
+                request.address = null;
+                free.offer(request);
+            }
+        }
+    }
 }
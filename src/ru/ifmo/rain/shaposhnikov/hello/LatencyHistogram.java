@@ -0,0 +1,155 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of latencies in nanoseconds with logarithmic buckets split into linear sub-buckets,
+ * as in HdrHistogram: every value is counted with a relative error below {@code 1 / 32}.
+ * <p>
+ * Recording is lock-free: threads increment counters in their own stripe of buckets,
+ * and only a new maximum needs a compare-and-set. Values above {@link #MAX_VALUE} are counted as the maximum.
+ * The methods are thread-safe, reading concurrently with recording returns an approximate snapshot.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class LatencyHistogram {
+    /**
+     * Largest distinguishable value, about 36 minutes.
+     */
+    public static final long MAX_VALUE = (1L << 41) - 1;
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - Long.numberOfLeadingZeros(MAX_VALUE) - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray[] stripes;
+    private final int mask;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Creates a histogram with a stripe per available processor.
+     */
+    public LatencyHistogram() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final int count = Integer.highestOneBit(Math.min(processors, 16) * 2 - 1);
+        stripes = new AtomicLongArray[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+        mask = count - 1;
+    }
+
+    private static int index(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(final int index) {
+        final int band = index / SUB_BUCKETS;
+        final long sub = index % SUB_BUCKETS;
+        return band == 0 ? sub : ((SUB_BUCKETS + sub + 1) << (band - 1)) - 1;
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds, negative values are counted as {@code 0}
+     */
+    @SuppressWarnings("deprecation")
+    public void record(final long nanos) {
+        final long value = Math.min(MAX_VALUE, Math.max(0, nanos));
+        stripes[(int) Thread.currentThread().getId() & mask].getAndIncrement(index(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    private long[] snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the number of recorded latencies.
+     *
+     * @return number of values
+     */
+    public long getCount() {
+        long count = 0;
+        for (final long c : snapshot()) {
+            count += c;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the mean latency.
+     *
+     * @return mean in nanoseconds or {@code 0} if nothing is recorded
+     */
+    public double getMean() {
+        final long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Returns the maximal recorded latency.
+     *
+     * @return maximum in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the latency not exceeded by the given share of recorded values.
+     *
+     * @param percentile percentile in {@code [0, 100]}
+     * @return upper bound of the bucket holding the percentile, in nanoseconds, {@code 0} if nothing is recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        final long[] counts = snapshot();
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Forgets all recorded values.
+     */
+    public void reset() {
+        for (final AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                stripe.set(i, 0);
+            }
+        }
+        sum.reset();
+        max.set(0);
+    }
+}
@@ -0,0 +1,350 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads requests of a client across server endpoints and keeps track of their health.
+ * <p>
+ * Every endpoint has its own {@link RttEstimator} and a smoothed loss rate. An endpoint losing more than
+ * {@link #MAX_LOSS} of requests or answering {@link #OUTLIER_FACTOR} times and at least 10 ms slower
+ * than the fastest one is ejected:
+ * it gets no new requests for {@link #EJECTION_NANOS}, doubled for every consecutive ejection,
+ * and is then admitted again on probation, with the loss rate at the threshold and a fresh estimator.
+ * The last admitted endpoint is never ejected.
+ * The methods are not thread-safe, a client calls them from its selector thread.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class LoadBalancer {
+    /**
+     * Smoothed loss rate above which an endpoint is ejected.
+     */
+    public static final double MAX_LOSS = 0.5;
+
+    /**
+     * How many times an endpoint may be slower than the fastest one before it is ejected.
+     */
+    public static final int OUTLIER_FACTOR = 4;
+
+    /**
+     * Time an endpoint is ejected for the first time.
+     */
+    public static final long EJECTION_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final int MAX_EJECTION_SHIFT = 5;
+    private static final int MIN_SAMPLES = 16;
+    private static final long MIN_OUTLIER_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int VIRTUAL_NODES = 64;
+
+    /**
+     * How requests are assigned to endpoints.
+     */
+    public enum Policy {
+        /**
+         * Every request goes to the admitted endpoint with the fewest requests in flight.
+         */
+        LEAST_OUTSTANDING,
+        /**
+         * Requests of a thread go to one endpoint chosen on a hash ring, so that adding or ejecting
+         * an endpoint moves only the threads of that endpoint.
+         */
+        CONSISTENT_HASH
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final Map<SocketAddress, Endpoint> byAddress = new HashMap<>();
+    private final Policy policy;
+    private final long[] ring;
+    private final Endpoint[] owners;
+    private int admitted;
+    private int next;
+
+    /**
+     * Creates a balancer.
+     *
+     * @param addresses resolved addresses of the endpoints
+     * @param policy    how requests are assigned
+     */
+    public LoadBalancer(final List<InetSocketAddress> addresses, final Policy policy) {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("At least one endpoint is required");
+        }
+        this.policy = Objects.requireNonNull(policy);
+        for (final InetSocketAddress address : addresses) {
+            final Endpoint endpoint = new Endpoint(address);
+            if (byAddress.putIfAbsent(address, endpoint) == null) {
+                endpoints.add(endpoint);
+            }
+        }
+        admitted = endpoints.size();
+
+        final long[][] points = new long[endpoints.size() * VIRTUAL_NODES][];
+        for (int i = 0; i < endpoints.size(); i++) {
+            final long seed = endpoints.get(i).address.toString().hashCode();
+            for (int j = 0; j < VIRTUAL_NODES; j++) {
+                points[i * VIRTUAL_NODES + j] = new long[]{mix(seed * VIRTUAL_NODES + j), i};
+            }
+        }
+        Arrays.sort(points, Comparator.comparingLong(point -> point[0]));
+        ring = new long[points.length];
+        owners = new Endpoint[points.length];
+        for (int i = 0; i < points.length; i++) {
+            ring[i] = points[i][0];
+            owners[i] = endpoints.get((int) points[i][1]);
+        }
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * Chooses the endpoint for the next request of a thread and accounts the request in flight.
+     *
+     * @param thread number of the thread sending the request
+     * @param now    current {@link System#nanoTime()}
+     * @return endpoint to send to
+     */
+    public Endpoint choose(final int thread, final long now) {
+        readmit(now);
+        final Endpoint endpoint = policy == Policy.CONSISTENT_HASH ? onRing(thread) : leastOutstanding();
+        endpoint.outstanding++;
+        return endpoint;
+    }
+
+    /**
+     * Accounts one more request in flight to an endpoint chosen before, for requests sent together.
+     *
+     * @param endpoint endpoint returned by {@link #choose(int, long)}
+     */
+    public void assign(final Endpoint endpoint) {
+        endpoint.outstanding++;
+    }
+
+    /**
+     * Accounts a request in flight to the endpoint that is given up by the sender before it is answered
+     * or times out, so that it is neither outstanding nor counted as lost.
+     *
+     * @param endpoint endpoint the request was sent to
+     */
+    public void cancel(final Endpoint endpoint) {
+        endpoint.outstanding = Math.max(0, endpoint.outstanding - 1);
+    }
+
+    private Endpoint onRing(final int thread) {
+        int index = Arrays.binarySearch(ring, mix(thread));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        for (int i = 0; i < ring.length; i++) {
+            final Endpoint endpoint = owners[(index + i) % ring.length];
+            if (endpoint.admitted) {
+                return endpoint;
+            }
+        }
+        throw new AssertionError("No admitted endpoints");
+    }
+
+    private Endpoint leastOutstanding() {
+        Endpoint best = null;
+        final int size = endpoints.size();
+        for (int i = 0; i < size; i++) {
+            final Endpoint endpoint = endpoints.get((next + i) % size);
+            if (endpoint.admitted && (best == null || endpoint.outstanding < best.outstanding)) {
+                best = endpoint;
+            }
+        }
+        next = (next + 1) % size;
+        return best;
+    }
+
+    private void readmit(final long now) {
+        if (admitted == endpoints.size()) {
+            return;
+        }
+        for (final Endpoint endpoint : endpoints) {
+            if (!endpoint.admitted && now - endpoint.ejectedUntil >= 0) {
+                endpoint.admitted = true;
+                endpoint.estimator = new RttEstimator();
+                // on probation: the next loss ejects the endpoint again, replies bring the loss rate down
+                endpoint.loss = MAX_LOSS;
+                admitted++;
+                Log.info("Endpoint " + endpoint.address + " is admitted again");
+            }
+        }
+    }
+
+    /**
+     * Returns the endpoint with the given address.
+     *
+     * @param address source of a reply
+     * @return endpoint or <var>null</var> if the address is not an endpoint
+     */
+    public Endpoint find(final SocketAddress address) {
+        return byAddress.get(address);
+    }
+
+    /**
+     * Accounts a reply to a request sent to the endpoint.
+     *
+     * @param endpoint endpoint the request was last sent to
+     * @param rttNanos round-trip time of a request sent once, {@code -1} if the request was retransmitted
+     */
+    public void answered(final Endpoint endpoint, final long rttNanos) {
+        endpoint.outstanding = Math.max(0, endpoint.outstanding - 1);
+        endpoint.answered++;
+        endpoint.loss -= endpoint.loss / 8;
+        endpoint.samples++;
+        if (rttNanos >= 0) {
+            endpoint.estimator.sample(rttNanos);
+            checkLatency(endpoint);
+        }
+    }
+
+    /**
+     * Accounts a request to the endpoint that timed out.
+     *
+     * @param endpoint endpoint the request was sent to
+     * @param now      current {@link System#nanoTime()}
+     */
+    public void lost(final Endpoint endpoint, final long now) {
+        endpoint.outstanding = Math.max(0, endpoint.outstanding - 1);
+        endpoint.lost++;
+        endpoint.loss += (1 - endpoint.loss) / 8;
+        endpoint.samples++;
+        if (endpoint.samples >= MIN_SAMPLES && endpoint.loss > MAX_LOSS) {
+            eject(endpoint, now, "loses " + Math.round(endpoint.loss * 100) + "% of requests");
+        }
+    }
+
+    private void checkLatency(final Endpoint endpoint) {
+        if (endpoint.samples < MIN_SAMPLES || admitted < 2) {
+            return;
+        }
+        long best = Long.MAX_VALUE;
+        for (final Endpoint other : endpoints) {
+            if (other != endpoint && other.admitted && other.samples >= MIN_SAMPLES) {
+                best = Math.min(best, other.estimator.getSmoothedRttNanos());
+            }
+        }
+        final long rtt = endpoint.estimator.getSmoothedRttNanos();
+        if (best != Long.MAX_VALUE && rtt > OUTLIER_FACTOR * best + MIN_OUTLIER_NANOS) {
+            eject(endpoint, System.nanoTime(), "answers in " + TimeUnit.NANOSECONDS.toMicros(rtt) + " us");
+        }
+    }
+
+    private void eject(final Endpoint endpoint, final long now, final String reason) {
+        if (!endpoint.admitted || admitted < 2) {
+            return;
+        }
+        endpoint.admitted = false;
+        endpoint.ejectedUntil = now + (EJECTION_NANOS << Math.min(endpoint.ejections, MAX_EJECTION_SHIFT));
+        endpoint.ejections++;
+        admitted--;
+        Log.info("Endpoint " + endpoint.address + " is ejected: " + reason);
+    }
+
+    /**
+     * Returns the endpoints.
+     *
+     * @return unmodifiable list of endpoints in the order they were given
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * A server endpoint with its statistics.
+     */
+    public static final class Endpoint {
+        private final InetSocketAddress address;
+        private RttEstimator estimator = new RttEstimator();
+        private boolean admitted = true;
+        private long ejectedUntil;
+        private int ejections;
+        private int outstanding;
+        private double loss;
+        private long samples;
+        private long answered;
+        private long lost;
+
+        private Endpoint(final InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Returns the address of the endpoint.
+         *
+         * @return socket address
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Returns the retransmission timeout of the endpoint for a sender.
+         *
+         * @param backoff number of consecutive expired timeouts of the sender
+         * @return timeout in nanoseconds
+         */
+        public long getTimeoutNanos(final int backoff) {
+            return estimator.getTimeoutNanos(backoff);
+        }
+
+        /**
+         * Checks if the endpoint gets new requests.
+         *
+         * @return <var>false</var> while the endpoint is ejected
+         */
+        public boolean isAdmitted() {
+            return admitted;
+        }
+
+        /**
+         * Returns the number of requests in flight.
+         *
+         * @return number of requests
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Returns the number of answered requests.
+         *
+         * @return number of requests
+         */
+        public long getAnswered() {
+            return answered;
+        }
+
+        /**
+         * Returns the number of requests that timed out.
+         *
+         * @return number of requests
+         */
+        public long getLost() {
+            return lost;
+        }
+
+        /**
+         * Returns how many times the endpoint was ejected.
+         *
+         * @return number of ejections
+         */
+        public int getEjections() {
+            return ejections;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: answered %d, lost %d, ejected %d times, smoothed RTT %d us",
+                    address, answered, lost, ejections, TimeUnit.NANOSECONDS.toMicros(estimator.getSmoothedRttNanos()));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Result of an open-loop run of {@link HelloUDPNonblockingClient}.
+ * Latencies are measured from the time a request was scheduled to be sent,
+ * so a stalled client or server is not hidden by requests that were sent late (coordinated omission).
+ *
+ * @author Boris Shaposhnikov
+ */
+public class LoadReport {
+    private final double rate;
+    private final long sent;
+    private final long answered;
+    private final long elapsedNanos;
+    private final long p50;
+    private final long p99;
+    private final long p999;
+    private final long max;
+
+    /**
+     * Creates a report.
+     *
+     * @param rate         target rate in requests per second
+     * @param sent         number of sent requests
+     * @param answered     number of requests answered correctly
+     * @param elapsedNanos time from the first scheduled request to the last reply or sent request
+     * @param latency      latencies of answered requests
+     */
+    LoadReport(final double rate, final long sent, final long answered,
+               final long elapsedNanos, final LatencyHistogram latency) {
+        this.rate = rate;
+        this.sent = sent;
+        this.answered = answered;
+        this.elapsedNanos = elapsedNanos;
+        p50 = latency.getValueAtPercentile(50);
+        p99 = latency.getValueAtPercentile(99);
+        p999 = latency.getValueAtPercentile(99.9);
+        max = latency.getMax();
+    }
+
+    /**
+     * Returns the number of sent requests.
+     *
+     * @return number of requests
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * Returns the number of requests answered correctly.
+     *
+     * @return number of requests
+     */
+    public long getAnswered() {
+        return answered;
+    }
+
+    /**
+     * Returns the share of sent requests left without a correct reply.
+     *
+     * @return loss in {@code [0, 1]}
+     */
+    public double getLoss() {
+        return sent == 0 ? 0 : (double) (sent - answered) / sent;
+    }
+
+    /**
+     * Returns the rate of correct replies.
+     *
+     * @return replies per second
+     */
+    public double getThroughput() {
+        return elapsedNanos == 0 ? 0 : answered * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * Returns a latency percentile.
+     *
+     * @param percentile one of {@code 50}, {@code 99} and {@code 99.9}
+     * @return latency in nanoseconds
+     */
+    public long getLatencyNanos(final double percentile) {
+        if (percentile == 50) {
+            return p50;
+        } else if (percentile == 99) {
+            return p99;
+        } else if (percentile == 99.9) {
+            return p999;
+        }
+        throw new IllegalArgumentException("Only 50, 99 and 99.9 percentiles are reported");
+    }
+
+    /**
+     * Returns the maximal latency.
+     *
+     * @return latency in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return max;
+    }
+
+    private static String millis(final long nanos) {
+        return String.format("%.3f ms", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Target %.1f req/s: sent %d, answered %d, loss %.2f%%, throughput %.1f req/s, "
+                        + "latency p50 %s, p99 %s, p99.9 %s, max %s",
+                rate, sent, answered, 100 * getLoss(), getThroughput(),
+                millis(p50), millis(p99), millis(p999), millis(max));
+    }
+}
@@ -0,0 +1,298 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous logger for Hello clients and servers.
+ * <p>
+ * Messages are put into a lock-free bounded ring buffer and written in batches by a background thread,
+ * so logging threads never wait for the console or a file. When the ring buffer is full the message is dropped.
+ * <p>
+ * Configured with system properties:
+ * <ul>
+ *     <li>{@code hello.log.level} - one of {@link Level}, {@code INFO} by default;</li>
+ *     <li>{@code hello.log.file} - file to append messages to, stdout and stderr by default;</li>
+ *     <li>{@code hello.log.capacity} - ring buffer capacity, rounded up to a power of two, {@code 8192} by default.</li>
+ * </ul>
+ *
+ * @author Boris Shaposhnikov
+ */
+public final class Log {
+    /**
+     * Logging levels in increasing order of severity.
+     */
+    public enum Level {
+        /**
+         * Every sent and received datagram.
+         */
+        DEBUG,
+        /**
+         * Start and completion of clients and servers.
+         */
+        INFO,
+        /**
+         * Errors.
+         */
+        ERROR,
+        /**
+         * Nothing is logged.
+         */
+        OFF
+    }
+
+    private static final int MAX_BATCH = 1024;
+    private static final long MAX_PARK_NANOS = 100_000_000;
+
+    private static volatile Level level = parseLevel(System.getProperty("hello.log.level"));
+
+    private static final int mask;
+    private static final String[] messages;
+    private static final Level[] levels;
+    private static final AtomicLongArray sequences;
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;
+    private static final LongAdder dropped = new LongAdder();
+
+    private static final Writer fileSink;
+    private static final Thread writer;
+    private static volatile boolean sleeping;
+
+    static {
+        final int capacity = Integer.highestOneBit(Math.max(2,
+                Integer.getInteger("hello.log.capacity", 8192) - 1)) << 1;
+        mask = capacity - 1;
+        messages = new String[capacity];
+        levels = new Level[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+
+        fileSink = openFile(System.getProperty("hello.log.file"));
+        writer = new Thread(Log::drainLoop, "hello-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+    }
+
+    private Log() {
+    }
+
+    private static Level parseLevel(final String name) {
+        if (name == null) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(name.toUpperCase());
+        } catch (final IllegalArgumentException e) {
+            System.err.println("Unknown log level " + name + ", using INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static Writer openFile(final String file) {
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (final IOException e) {
+            System.err.println("Error during opening log file, using console: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Changes the current logging level.
+     *
+     * @param newLevel minimal level of logged messages
+     */
+    public static void setLevel(final Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Checks if messages of the level are logged.
+     *
+     * @param messageLevel level to check
+     * @return <var>true</var> if and only if messages of the level are logged
+     */
+    public static boolean isEnabled(final Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    /**
+     * Logs a {@link Level#DEBUG} message.
+     *
+     * @param message what to log
+     */
+    public static void debug(final String message) {
+        log(Level.DEBUG, message);
+    }
+
+    /**
+     * Logs a {@link Level#DEBUG} message followed by the remaining bytes of the buffer.
+     * The buffer is decoded only if the level is enabled, its position is not changed.
+     *
+     * @param message what to log before the data
+     * @param data    datagram contents
+     */
+    public static void debug(final String message, final ByteBuffer data) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, message + Util.toString(data));
+        }
+    }
+
+    /**
+     * Logs a {@link Level#DEBUG} message followed by a part of the array.
+     * The array is decoded only if the level is enabled.
+     *
+     * @param message what to log before the data
+     * @param data    datagram contents
+     * @param offset  offset of the data
+     * @param length  length of the data
+     */
+    public static void debug(final String message, final byte[] data, final int offset, final int length) {
+        if (isEnabled(Level.DEBUG)) {
+            publish(Level.DEBUG, message + new String(data, offset, length, Util.CHARSET));
+        }
+    }
+
+    /**
+     * Logs an {@link Level#INFO} message.
+     *
+     * @param message what to log
+     */
+    public static void info(final String message) {
+        log(Level.INFO, message);
+    }
+
+    /**
+     * Logs an {@link Level#ERROR} message.
+     *
+     * @param message what to log
+     */
+    public static void error(final String message) {
+        log(Level.ERROR, message);
+    }
+
+    /**
+     * Returns the number of messages dropped because the ring buffer was full.
+     *
+     * @return number of dropped messages
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static void log(final Level messageLevel, final String message) {
+        if (isEnabled(messageLevel)) {
+            publish(messageLevel, message);
+        }
+    }
+
+    private static void publish(final Level messageLevel, final String message) {
+        long position = tail.get();
+        while (true) {
+            final int index = (int) position & mask;
+            final long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    messages[index] = message;
+                    levels[index] = messageLevel;
+                    // a volatile write: a lazy one could be reordered after the read of sleeping,
+                    // and the writer would park while this message waits for the park timeout
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Writes all published messages. Called by the writer thread and on shutdown.
+     */
+    public static synchronized void flush() {
+        while (drain() > 0) {
+            // keep draining
+        }
+    }
+
+    private static synchronized int drain() {
+        final StringBuilder out = new StringBuilder();
+        final StringBuilder err = new StringBuilder();
+        int count = 0;
+        while (count < MAX_BATCH) {
+            final int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            final StringBuilder target = fileSink == null && levels[index] == Level.ERROR ? err : out;
+            target.append(messages[index]).append(System.lineSeparator());
+            messages[index] = null;
+            levels[index] = null;
+            sequences.set(index, head + mask + 1);
+            head++;
+            count++;
+        }
+        if (count > 0) {
+            write(out, err);
+        }
+        return count;
+    }
+
+    private static void write(final CharSequence out, final CharSequence err) {
+        if (fileSink != null) {
+            try {
+                fileSink.append(out);
+                fileSink.flush();
+            } catch (final IOException e) {
+                System.err.println("Error during writing log: " + e.getMessage());
+            }
+            return;
+        }
+        if (out.length() > 0) {
+            System.out.print(out);
+            System.out.flush();
+        }
+        if (err.length() > 0) {
+            System.err.print(err);
+            System.err.flush();
+        }
+    }
+
+    private static synchronized boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    private static void drainLoop() {
+        while (true) {
+            if (drain() == 0) {
+                sleeping = true;
+                if (isEmpty()) {
+                    LockSupport.parkNanos(MAX_PARK_NANOS);
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
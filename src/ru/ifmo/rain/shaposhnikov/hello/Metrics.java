@@ -0,0 +1,255 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters and latency histogram of a client or a server, published as an MXBean named
+ * {@code ru.ifmo.rain.shaposhnikov.hello:type=<class>,name=<number>}.
+ * <p>
+ * Counters are {@link LongAdder striped}, so recording does not contend between threads.
+ * The methods are thread-safe.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class Metrics implements MetricsMXBean {
+    private static final String DOMAIN = "ru.ifmo.rain.shaposhnikov.hello";
+    private static final AtomicInteger instances = new AtomicInteger();
+
+    private final LongAdder datagramsReceived = new LongAdder();
+    private final LongAdder datagramsSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder receiveErrors = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LongAdder retransmissions = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder inlined = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private volatile LongSupplier pendingReplies = () -> 0;
+    private volatile LongSupplier freeBuffers = () -> 0;
+    private ObjectName name;
+
+    /**
+     * Accounts a received datagram.
+     *
+     * @param bytes size of the datagram
+     */
+    public void received(final int bytes) {
+        datagramsReceived.increment();
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * Accounts a sent datagram.
+     *
+     * @param bytes size of the datagram
+     */
+    public void sent(final int bytes) {
+        datagramsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * Accounts a failed receive.
+     */
+    public void receiveError() {
+        receiveErrors.increment();
+    }
+
+    /**
+     * Accounts a failed send.
+     */
+    public void sendError() {
+        sendErrors.increment();
+    }
+
+    /**
+     * Accounts a request sent again after a timeout.
+     */
+    public void retransmitted() {
+        retransmissions.increment();
+    }
+
+    /**
+     * Accounts a request discarded or answered as busy because of overload.
+     */
+    public void shed() {
+        shed.increment();
+    }
+
+    /**
+     * Accounts a request handled on the selector thread instead of a worker.
+     */
+    public void inlined() {
+        inlined.increment();
+    }
+
+    /**
+     * Records a latency.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public void latency(final long nanos) {
+        latency.record(nanos);
+    }
+
+    /**
+     * Sets where queue depths are taken from.
+     *
+     * @param pendingReplies number of replies waiting to be sent
+     * @param freeBuffers    number of buffers available for receiving
+     */
+    public void setQueues(final LongSupplier pendingReplies, final LongSupplier freeBuffers) {
+        this.pendingReplies = pendingReplies;
+        this.freeBuffers = freeBuffers;
+    }
+
+    /**
+     * Returns the latency histogram.
+     *
+     * @return histogram of latencies in nanoseconds
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Publishes the metrics in the platform MBean server. Errors are logged.
+     *
+     * @param owner class of the client or the server
+     * @return this metrics
+     */
+    public synchronized Metrics register(final Class<?> owner) {
+        if (name != null) {
+            return this;
+        }
+        try {
+            name = new ObjectName(DOMAIN + ":type=" + owner.getSimpleName() + ",name=" + instances.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+        } catch (final JMException e) {
+            name = null;
+            Log.error("Error during registering metrics: " + e.getMessage());
+        }
+        return this;
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server if they are published.
+     */
+    public synchronized void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (final JMException e) {
+            Log.error("Error during unregistering metrics: " + e.getMessage());
+        }
+        name = null;
+    }
+
+    @Override
+    public long getDatagramsReceived() {
+        return datagramsReceived.sum();
+    }
+
+    @Override
+    public long getDatagramsSent() {
+        return datagramsSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getReceiveErrors() {
+        return receiveErrors.sum();
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getRequestsShed() {
+        return shed.sum();
+    }
+
+    @Override
+    public long getRequestsInlined() {
+        return inlined.sum();
+    }
+
+    @Override
+    public long getPendingReplies() {
+        return pendingReplies.getAsLong();
+    }
+
+    @Override
+    public long getFreeBuffers() {
+        return freeBuffers.getAsLong();
+    }
+
+    @Override
+    public long getLatencyCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public double getLatencyMeanMicros() {
+        return latency.getMean() / 1000;
+    }
+
+    @Override
+    public double getLatencyP50Micros() {
+        return latency.getValueAtPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP99Micros() {
+        return latency.getValueAtPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyP999Micros() {
+        return latency.getValueAtPercentile(99.9) / 1000.0;
+    }
+
+    @Override
+    public double getLatencyMaxMicros() {
+        return latency.getMax() / 1000.0;
+    }
+
+    @Override
+    public void reset() {
+        datagramsReceived.reset();
+        datagramsSent.reset();
+        bytesReceived.reset();
+        bytesSent.reset();
+        receiveErrors.reset();
+        sendErrors.reset();
+        retransmissions.reset();
+        shed.reset();
+        inlined.reset();
+        latency.reset();
+    }
+}
@@ -0,0 +1,132 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+/**
+ * Management interface of {@link Metrics} published over JMX.
+ *
+ * @author Boris Shaposhnikov
+ */
+public interface MetricsMXBean {
+    /**
+     * Returns the number of received datagrams.
+     *
+     * @return number of datagrams
+     */
+    long getDatagramsReceived();
+
+    /**
+     * Returns the number of sent datagrams.
+     *
+     * @return number of datagrams
+     */
+    long getDatagramsSent();
+
+    /**
+     * Returns the total size of received datagrams.
+     *
+     * @return number of bytes
+     */
+    long getBytesReceived();
+
+    /**
+     * Returns the total size of sent datagrams.
+     *
+     * @return number of bytes
+     */
+    long getBytesSent();
+
+    /**
+     * Returns the number of failed receives.
+     *
+     * @return number of errors
+     */
+    long getReceiveErrors();
+
+    /**
+     * Returns the number of failed sends.
+     *
+     * @return number of errors
+     */
+    long getSendErrors();
+
+    /**
+     * Returns the number of requests sent again after a timeout.
+     *
+     * @return number of retransmissions, always {@code 0} for servers
+     */
+    long getRetransmissions();
+
+    /**
+     * Returns the number of requests discarded or answered as busy because of overload.
+     *
+     * @return number of requests, always {@code 0} for clients
+     */
+    long getRequestsShed();
+
+    /**
+     * Returns the number of requests handled on the selector thread instead of a worker.
+     *
+     * @return number of requests, always {@code 0} unless the server dispatches adaptively
+     */
+    long getRequestsInlined();
+
+    /**
+     * Returns the number of replies waiting to be sent.
+     *
+     * @return current queue depth, {@code 0} if replies are not queued
+     */
+    long getPendingReplies();
+
+    /**
+     * Returns the number of buffers available for receiving.
+     *
+     * @return current number of free buffers, {@code 0} if buffers are not pooled
+     */
+    long getFreeBuffers();
+
+    /**
+     * Returns the number of recorded latencies: from receive to send for servers, from send to reply for clients.
+     *
+     * @return number of values
+     */
+    long getLatencyCount();
+
+    /**
+     * Returns the mean latency.
+     *
+     * @return mean in microseconds
+     */
+    double getLatencyMeanMicros();
+
+    /**
+     * Returns the median latency.
+     *
+     * @return median in microseconds
+     */
+    double getLatencyP50Micros();
+
+    /**
+     * Returns the 99th percentile of latency.
+     *
+     * @return percentile in microseconds
+     */
+    double getLatencyP99Micros();
+
+    /**
+     * Returns the 99.9th percentile of latency.
+     *
+     * @return percentile in microseconds
+     */
+    double getLatencyP999Micros();
+
+    /**
+     * Returns the maximal latency.
+     *
+     * @return maximum in microseconds
+     */
+    double getLatencyMaxMicros();
+
+    /**
+     * Resets counters and the latency histogram.
+     */
+    void reset();
+}
@@ -0,0 +1,27 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+/**
+ * What {@link HelloUDPNonblockingServer} does with new datagrams while it is overloaded,
+ * that is from the moment all its request buffers are in use until the number of requests in progress
+ * falls to the low watermark.
+ *
+ * @author Boris Shaposhnikov
+ */
+public enum OverloadPolicy {
+    /**
+     * Stops reading the channel, so datagrams wait in the socket buffer and the kernel drops the excess.
+     */
+    PAUSE_READING,
+    /**
+     * Reads and discards new datagrams.
+     */
+    DROP_NEWEST,
+    /**
+     * Discards the oldest request that is still waiting for a worker and takes the new one instead.
+     */
+    DROP_OLDEST,
+    /**
+     * Answers new datagrams with {@link HelloUDPNonblockingServer#BUSY_REPLY} without processing them.
+     */
+    REPLY_BUSY
+}
@@ -0,0 +1,149 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket per source IP address, so that one client cannot take the whole server.
+ * <p>
+ * A bucket holds up to <var>burst</var> tokens refilled at <var>rate</var> tokens per second, a request takes a token.
+ * Buckets are kept in the equivalent form of the generic cell rate algorithm: one timestamp, the time the bucket
+ * becomes full, updated by compare-and-set, so checking a request neither locks nor allocates.
+ * <p>
+ * A full bucket behaves as a missing one, so buckets of sources idle long enough are removed by a sweep
+ * run once per {@link #SWEEP_INTERVAL_NANOS}. While the table is full, requests of new sources are denied,
+ * so a flood from many addresses does not push out the buckets of known sources.
+ * The methods are thread-safe.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class RateLimiter {
+    /**
+     * Default maximal number of tracked sources.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * Time between sweeps of idle buckets.
+     */
+    public static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Map<InetAddress, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int capacity;
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long nextSweep = System.nanoTime() + SWEEP_INTERVAL_NANOS;
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+
+    /**
+     * Creates a limiter tracking up to {@link #DEFAULT_CAPACITY} sources.
+     *
+     * @param rate  requests per second allowed for one source
+     * @param burst number of requests a source may send at once after being idle
+     */
+    public RateLimiter(final double rate, final int burst) {
+        this(rate, burst, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a limiter.
+     *
+     * @param rate     requests per second allowed for one source
+     * @param burst    number of requests a source may send at once after being idle
+     * @param capacity maximal number of tracked sources
+     */
+    public RateLimiter(final double rate, final int burst, final int capacity) {
+        if (!(rate > 0) || Double.isInfinite(rate) || burst <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Rate, burst and capacity must be positive numbers");
+        }
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        this.burstNanos = intervalNanos * burst;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Takes a token from the bucket of the source.
+     *
+     * @param address source of a request
+     * @param now     current {@link System#nanoTime()}
+     * @return <var>true</var> if the request is allowed
+     */
+    public boolean tryAcquire(final SocketAddress address, final long now) {
+        if (now - nextSweep >= 0) {
+            sweep(now);
+        }
+        final InetAddress source = address instanceof InetSocketAddress
+                ? ((InetSocketAddress) address).getAddress() : null;
+        AtomicLong bucket = source == null ? null : buckets.get(source);
+        if (bucket == null && source != null && buckets.size() < capacity) {
+            bucket = buckets.computeIfAbsent(source, key -> new AtomicLong(now));
+        }
+        if (bucket == null) {
+            denied.increment();
+            return false;
+        }
+        for (long full = bucket.get(); ; full = bucket.get()) {
+            final long next = Math.max(full - now, 0) + intervalNanos;
+            if (next > burstNanos) {
+                denied.increment();
+                return false;
+            }
+            if (bucket.compareAndSet(full, now + next)) {
+                allowed.increment();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the buckets that are full. A request racing with the removal may be counted in a new bucket.
+     */
+    private void sweep(final long now) {
+        if (!sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            nextSweep = now + SWEEP_INTERVAL_NANOS;
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of tracked sources.
+     *
+     * @return number of buckets
+     */
+    public int size() {
+        return buckets.size();
+    }
+
+    /**
+     * Returns the number of allowed requests.
+     *
+     * @return number of requests
+     */
+    public long getAllowed() {
+        return allowed.sum();
+    }
+
+    /**
+     * Returns the number of denied requests.
+     *
+     * @return number of requests
+     */
+    public long getDenied() {
+        return denied.sum();
+    }
+}
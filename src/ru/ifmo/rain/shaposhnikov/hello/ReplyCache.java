@@ -0,0 +1,210 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of responses keyed by the source address and the request bytes,
+ * so that a retransmitted request is answered without processing it again.
+ * <p>
+ * Entries live at most the time-to-live and the least recently used entry is evicted when the cache is full.
+ * The cache is split into stripes with their own lock and LRU order, a lookup does not allocate.
+ * The methods are thread-safe.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class ReplyCache {
+    /**
+     * Default time-to-live of an entry.
+     */
+    public static final long DEFAULT_TTL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttlNanos;
+    private final ThreadLocal<Key> probe = ThreadLocal.withInitial(Key::new);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache with {@link #DEFAULT_TTL_NANOS} time-to-live.
+     *
+     * @param capacity maximal number of entries
+     */
+    public ReplyCache(final int capacity) {
+        this(capacity, DEFAULT_TTL_NANOS);
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity maximal number of entries
+     * @param ttlNanos time-to-live of an entry
+     */
+    public ReplyCache(final int capacity, final long ttlNanos) {
+        if (capacity <= 0 || ttlNanos <= 0) {
+            throw new IllegalArgumentException("Capacity and time-to-live must be positive numbers");
+        }
+        this.ttlNanos = ttlNanos;
+        final int stripeCapacity = (capacity + STRIPES - 1) / STRIPES;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeCapacity);
+        }
+    }
+
+    private Stripe stripe(final Key key) {
+        final int hash = key.hash;
+        return stripes[(hash ^ hash >>> 16) & (STRIPES - 1)];
+    }
+
+    /**
+     * Finds the response to the request.
+     *
+     * @param address source address of the request
+     * @param request remaining bytes are the request, its position is not changed
+     * @return cached response that must not be modified or <var>null</var> if there is no live entry
+     */
+    public byte[] get(final SocketAddress address, final ByteBuffer request) {
+        final Key key = probe.get().set(address, request);
+        final Stripe stripe = stripe(key);
+        final byte[] response;
+        synchronized (stripe) {
+            final Reply reply = stripe.get(key);
+            if (reply == null) {
+                response = null;
+            } else if (reply.expiresAt - System.nanoTime() < 0) {
+                stripe.remove(key);
+                evictions.increment();
+                response = null;
+            } else {
+                response = reply.response;
+            }
+        }
+        key.set(null, null);
+        (response == null ? misses : hits).increment();
+        return response;
+    }
+
+    /**
+     * Stores a copy of the response to the request.
+     *
+     * @param address  source address of the request
+     * @param request  remaining bytes are the request, its position is not changed
+     * @param response remaining bytes are the response, its position is not changed
+     */
+    public void put(final SocketAddress address, final ByteBuffer request, final ByteBuffer response) {
+        final Key key = new Key().set(address, copy(request));
+        final Reply reply = new Reply(copy(response).array(), System.nanoTime() + ttlNanos);
+        final Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, reply);
+        }
+    }
+
+    private static ByteBuffer copy(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Returns the number of requests answered from the cache.
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of requests not found in the cache.
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries removed because the cache was full or their time-to-live passed.
+     *
+     * @return number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Source address and request bytes. The key used for lookups wraps the received buffer
+     * and is reused by its thread, stored keys own a copy.
+     */
+    private static final class Key {
+        private SocketAddress address;
+        private ByteBuffer request;
+        private int hash;
+
+        Key set(final SocketAddress address, final ByteBuffer request) {
+            this.address = address;
+            this.request = request;
+            hash = request == null ? 0 : 31 * address.hashCode() + request.hashCode();
+            return this;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key key = (Key) o;
+            return hash == key.hash && address.equals(key.address) && request.equals(key.request);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Reply {
+        private final byte[] response;
+        private final long expiresAt;
+
+        Reply(final byte[] response, final long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Part of the cache in access order.
+     */
+    private final class Stripe extends LinkedHashMap<Key, Reply> {
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        Stripe(final int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Reply> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
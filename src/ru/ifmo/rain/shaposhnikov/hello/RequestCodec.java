@@ -0,0 +1,198 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Byte-level formatting of requests {@code <prefix><thread>_<request>} and validation of responses
+ * without intermediate {@link String strings}, or the same in {@link BinaryFrame binary frames}.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class RequestCodec {
+    /**
+     * Maximal length of the decimal representation of an {@code int}.
+     */
+    private static final int MAX_INT_LENGTH = 11;
+
+    private final byte[] prefix;
+    private final boolean binary;
+
+    /**
+     * Creates a codec for text requests with the passed prefix.
+     *
+     * @param prefix request prefix
+     */
+    public RequestCodec(final String prefix) {
+        this(prefix, false);
+    }
+
+    /**
+     * Creates a codec for requests with the passed prefix.
+     *
+     * @param prefix request prefix
+     * @param binary <var>true</var> to send {@link BinaryFrame binary frames} instead of text
+     */
+    public RequestCodec(final String prefix, final boolean binary) {
+        this.prefix = prefix.getBytes(Util.CHARSET);
+        this.binary = binary;
+    }
+
+    /**
+     * Returns the maximal length of an encoded request.
+     *
+     * @return number of bytes enough for any request
+     */
+    public int maxLength() {
+        return prefix.length + (binary ? BinaryFrame.MAX_HEADER_LENGTH : 2 * MAX_INT_LENGTH + 1);
+    }
+
+    /**
+     * Writes the request {@code <prefix><thread>_<request>} or its frame at the position of the buffer.
+     *
+     * @param buffer  where to write
+     * @param thread  thread number, non-negative for frames
+     * @param request request number, non-negative for frames
+     */
+    public void encode(final ByteBuffer buffer, final int thread, final int request) {
+        if (binary) {
+            BinaryFrame.putHeader(buffer, thread, request);
+            buffer.put(prefix);
+            return;
+        }
+        buffer.put(prefix);
+        putDecimal(buffer, thread);
+        buffer.put((byte) '_');
+        putDecimal(buffer, request);
+    }
+
+    private static void putDecimal(final ByteBuffer buffer, final int value) {
+        long rest = value;
+        if (rest < 0) {
+            buffer.put((byte) '-');
+            rest = -rest;
+        }
+        long power = 1;
+        while (power * 10 <= rest) {
+            power *= 10;
+        }
+        for (; power > 0; power /= 10) {
+            buffer.put((byte) ('0' + rest / power));
+            rest %= power;
+        }
+    }
+
+    /**
+     * Finds the request number the response answers: a frame with the numbers in the header
+     * for a binary codec, see {@link #respondedRequest(ByteBuffer, int)} for a text one.
+     * The buffer is not changed.
+     *
+     * @param response received response
+     * @param thread   expected thread number
+     * @return request number if the response is correct for the thread, otherwise {@code -1}
+     */
+    public int decode(final ByteBuffer response, final int thread) {
+        if (!binary) {
+            return respondedRequest(response, thread);
+        }
+        final int position = response.position();
+        try {
+            if (response.get() != BinaryFrame.MAGIC || BinaryFrame.getVarint(response) != thread) {
+                return -1;
+            }
+            return BinaryFrame.getVarint(response);
+        } catch (final BufferUnderflowException e) {
+            return -1;
+        } finally {
+            response.position(position);
+        }
+    }
+
+    /**
+     * Finds the request number the response answers. Has the same semantics as {@link Util#isRespond}:
+     * the response must contain two numbers, the first one equal to the thread.
+     * As in the regular expression, a single number is split before its last digit.
+     * Bytes are checked from the position up to the limit or the first 0 byte, the buffer is not changed.
+     * <p>
+     * UTF-8 encodes non-ASCII characters with bytes outside of {@code '0'..'9'},
+     * so digits are found without decoding.
+     *
+     * @param response received response
+     * @param thread   expected thread number
+     * @return request number if the response is correct for the thread, otherwise {@code -1}
+     */
+    public static int respondedRequest(final ByteBuffer response, final int thread) {
+        final int limit = response.limit();
+        final int threadStart = skipNonDigits(response, response.position(), limit);
+        int threadEnd = skipDigits(response, threadStart, limit);
+        int requestStart = skipNonDigits(response, threadEnd, limit);
+        int requestEnd = skipDigits(response, requestStart, limit);
+        if (requestStart == requestEnd) {
+            if (threadEnd - threadStart < 2) {
+                return -1;
+            }
+            requestEnd = threadEnd;
+            threadEnd--;
+            requestStart = threadEnd;
+        }
+        if (skipNonDigits(response, requestEnd, limit) != terminator(response, requestEnd, limit)
+                || parseDecimal(response, threadStart, threadEnd) != thread) {
+            return -1;
+        }
+        final long request = parseDecimal(response, requestStart, requestEnd);
+        return request <= Integer.MAX_VALUE ? (int) request : -1;
+    }
+
+    /**
+     * Checks if the response is correct for the given request.
+     *
+     * @param response received response
+     * @param thread   thread number in request
+     * @param request  request number in request
+     * @return <var>true</var> if and only if the response is correct, otherwise <var>false</var>.
+     */
+    public static boolean isRespond(final ByteBuffer response, final int thread, final int request) {
+        return request >= 0 && respondedRequest(response, thread) == request;
+    }
+
+    private static boolean isDigit(final byte b) {
+        return '0' <= b && b <= '9';
+    }
+
+    private static int skipNonDigits(final ByteBuffer buffer, int i, final int limit) {
+        while (i < limit && buffer.get(i) != 0 && !isDigit(buffer.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipDigits(final ByteBuffer buffer, int i, final int limit) {
+        while (i < limit && isDigit(buffer.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int terminator(final ByteBuffer buffer, int i, final int limit) {
+        while (i < limit && buffer.get(i) != 0) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Parses digits in {@code [from, to)} written without leading zeros.
+     *
+     * @return parsed value or {@code -1} if the number has leading zeros or does not fit into an {@code int}
+     */
+    private static long parseDecimal(final ByteBuffer buffer, final int from, final int to) {
+        if (to - from > MAX_INT_LENGTH - 1 || to - from > 1 && buffer.get(from) == '0') {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + buffer.get(i) - '0';
+        }
+        return value;
+    }
+}
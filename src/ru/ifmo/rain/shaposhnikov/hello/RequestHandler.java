@@ -0,0 +1,24 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Computes the reply to a request of {@link HelloUDPServer} and {@link HelloUDPNonblockingServer}.
+ * <p>
+ * Handlers work with the buffers the servers receive into and send from, so a request is not copied
+ * or decoded unless the handler does it. A handler is called concurrently from several threads.
+ *
+ * @author Boris Shaposhnikov
+ * @see HelloHandler
+ */
+@FunctionalInterface
+public interface RequestHandler {
+    /**
+     * Writes the reply to the request. The reply must fit into the remaining space of the response buffer,
+     * a handler truncates a reply that does not fit. Neither buffer may be used after the method returns.
+     *
+     * @param request  read-only request bytes from the position to the limit
+     * @param response buffer to put the reply to, starting at its position
+     */
+    void handle(ByteBuffer request, ByteBuffer response);
+}
@@ -0,0 +1,230 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded multi-producer multi-consumer queue on a preallocated array.
+ * <p>
+ * Producers and consumers claim slots by a compare-and-set on the tail and head sequences,
+ * every slot has its own sequence telling whether it is free or published, as in the Disruptor.
+ * Offering and polling do not allocate and do not lock. Consumers wait in {@link #take()}
+ * according to the {@link WaitStrategy}.
+ *
+ * @param <E> type of elements
+ * @author Boris Shaposhnikov
+ */
+public class RingBuffer<E> {
+    /**
+     * Distance between the tail and head sequences in longs, so that they are on different cache lines.
+     */
+    private static final int PAD = 16;
+    private static final int TAIL = PAD;
+    private static final int HEAD = 2 * PAD;
+
+    private final Object[] elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray cursors = new AtomicLongArray(3 * PAD);
+    private final int mask;
+
+    private final WaitStrategy waitStrategy;
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final Lock lock = new ReentrantLock();
+    /**
+     * Consumers parked in {@link #await()}, guarded by {@link #lock}.
+     */
+    private final List<Thread> parked = new ArrayList<>();
+
+    /**
+     * Creates a ring buffer.
+     *
+     * @param capacity     minimal capacity, rounded up to a power of two
+     * @param waitStrategy how {@link #take()} waits
+     */
+    public RingBuffer(final int capacity, final WaitStrategy waitStrategy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be a positive number");
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        elements = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Adds the element if there is space.
+     *
+     * @param element what to add
+     * @return <var>true</var> if the element was added, <var>false</var> if the buffer is full
+     */
+    public boolean offer(final E element) {
+        long position = cursors.get(TAIL);
+        while (true) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (cursors.compareAndSet(TAIL, position, position + 1)) {
+                    elements[index] = element;
+                    // a volatile write: a lazy one could be reordered after the read of waiters
+                    sequences.set(index, position + 1);
+                    if (waiters.get() > 0) {
+                        signal();
+                    }
+                    return true;
+                }
+                position = cursors.get(TAIL);
+            } else if (difference < 0) {
+                return false;
+            } else {
+                position = cursors.get(TAIL);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element if there is one.
+     *
+     * @return removed element or <var>null</var> if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long position = cursors.get(HEAD);
+        while (true) {
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (cursors.compareAndSet(HEAD, position, position + 1)) {
+                    final E element = (E) elements[index];
+                    elements[index] = null;
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+                position = cursors.get(HEAD);
+            } else if (difference < 0) {
+                return null;
+            } else {
+                position = cursors.get(HEAD);
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting for it according to the {@link WaitStrategy}.
+     *
+     * @return removed element or <var>null</var> if the thread is interrupted
+     */
+    public E take() {
+        for (int attempt = 0; ; attempt++) {
+            final E element = poll();
+            if (element != null) {
+                return element;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                return null;
+            }
+            if (waitStrategy == WaitStrategy.BLOCKING && attempt >= WaitStrategy.SPINS) {
+                return await();
+            }
+            waitStrategy.idle(attempt);
+        }
+    }
+
+    /**
+     * Parks the consumer until a producer hands it a signal. Unlike a {@link java.util.concurrent.locks.Condition},
+     * which allocates a node per wait, the list of parked consumers stops growing once every consumer was in it.
+     */
+    private E await() {
+        final Thread thread = Thread.currentThread();
+        waiters.incrementAndGet();
+        try {
+            while (!thread.isInterrupted()) {
+                enqueue(thread);
+                // the increment and the publishing write of a producer are both volatile and so totally ordered:
+                // either the producer reads waiters after the increment and signals, or the poll sees its element
+                final E element = poll();
+                if (element != null) {
+                    dequeue(thread);
+                    return element;
+                }
+                LockSupport.park(this);
+                dequeue(thread);
+            }
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private void enqueue(final Thread thread) {
+        lock.lock();
+        try {
+            parked.add(thread);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dequeue(final Thread thread) {
+        lock.lock();
+        try {
+            parked.remove(thread);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes one parked consumer and takes it off the list, so that the next signal goes to another one.
+     */
+    private void signal() {
+        final Thread thread;
+        lock.lock();
+        try {
+            if (parked.isEmpty()) {
+                return;
+            }
+            thread = parked.remove(parked.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Checks if the buffer is empty.
+     *
+     * @return <var>true</var> if there were no elements at the moment of the call
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Returns the number of elements.
+     *
+     * @return approximate number of elements if the buffer is used concurrently
+     */
+    public int size() {
+        final long head = cursors.get(HEAD);
+        final long tail = cursors.get(TAIL);
+        return (int) Math.max(0, Math.min(elements.length, tail - head));
+    }
+
+    /**
+     * Returns the capacity.
+     *
+     * @return maximal number of elements
+     */
+    public int capacity() {
+        return elements.length;
+    }
+}
@@ -0,0 +1,100 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retransmission timeout of one destination computed as in TCP (RFC 6298).
+ * <p>
+ * Round-trip samples update the smoothed round-trip time and its variation. Only replies to requests
+ * sent once may be sampled (Karn's rule), because a reply to a retransmitted request is ambiguous.
+ * <p>
+ * The backoff is kept by every sender, not here: a sender counts its timeouts expired in a row without
+ * hearing from the destination, and every expiry doubles its timeout up to {@link #MAX_TIMEOUT_NANOS}.
+ * Any reply resets the count, even a wrong one: it shows that the destination is reachable, so only silence
+ * is backed off. Losses of one of many threads sharing an estimator do not slow down the others.
+ * The methods are thread-safe.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class RttEstimator {
+    /**
+     * Lower bound of the retransmission timeout. A retransmission of an already answered request
+     * is a protocol error for a strict server, so scheduling hiccups must not trigger it.
+     */
+    public static final long MIN_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long GRANULARITY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Upper bound of the retransmission timeout reached by the backoff.
+     */
+    public static final long MAX_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(10 * Util.TIMEOUT_MILLISECONDS);
+
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private static final long INITIAL_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(Util.TIMEOUT_MILLISECONDS);
+
+    private long smoothedRtt;
+    private long rttVariation;
+    private boolean sampled;
+    private volatile long timeout = INITIAL_TIMEOUT_NANOS;
+
+    /**
+     * Accounts a round-trip time of a request that was sent only once.
+     *
+     * @param rttNanos time between sending the request and receiving the reply
+     */
+    public synchronized void sample(final long rttNanos) {
+        if (!sampled) {
+            smoothedRtt = rttNanos;
+            rttVariation = rttNanos / 2;
+            sampled = true;
+        } else {
+            rttVariation += (Math.abs(smoothedRtt - rttNanos) - rttVariation) / 4;
+            smoothedRtt += (rttNanos - smoothedRtt) / 8;
+        }
+        timeout = clamp(smoothedRtt + Math.max(GRANULARITY_NANOS, 4 * rttVariation));
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return timeout in nanoseconds
+     */
+    public long getTimeoutNanos() {
+        return timeout;
+    }
+
+    /**
+     * Returns the retransmission timeout of a sender whose timeouts have expired the given number of times in a row.
+     *
+     * @param backoff number of consecutive expired timeouts of the sender
+     * @return current timeout doubled <var>backoff</var> times, in nanoseconds
+     */
+    public long getTimeoutNanos(final int backoff) {
+        return clamp(timeout << Math.min(backoff, MAX_BACKOFF_SHIFT));
+    }
+
+    /**
+     * Returns the retransmission timeout of a sender rounded up to milliseconds.
+     *
+     * @param backoff number of consecutive expired timeouts of the sender
+     * @return positive timeout in milliseconds
+     */
+    public int getTimeoutMillis(final int backoff) {
+        return (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(getTimeoutNanos(backoff) + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+    }
+
+    /**
+     * Returns the smoothed round-trip time.
+     *
+     * @return smoothed round-trip time in nanoseconds, {@code 0} before the first sample
+     */
+    public synchronized long getSmoothedRttNanos() {
+        return smoothedRtt;
+    }
+
+    private static long clamp(final long timeout) {
+        return Math.min(MAX_TIMEOUT_NANOS, Math.max(MIN_TIMEOUT_NANOS, timeout));
+    }
+}
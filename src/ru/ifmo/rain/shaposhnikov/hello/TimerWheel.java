@@ -0,0 +1,246 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timer wheel for deadlines of outstanding requests.
+ * <p>
+ * Time is split into ticks, a timeout is put into the bucket of the tick of its deadline modulo the wheel size.
+ * Scheduling and cancelling are O(1), a bucket is checked once the whole tick has passed,
+ * so timeouts fire at most one tick late. Timeouts are intrusive nodes and are reused without allocation.
+ * Timeouts of the current round of the wheel are counted per bucket, so the next tick to check
+ * is found without walking the buckets, and buckets holding only timeouts of later rounds are not waited for.
+ * Not thread-safe, intended for a selector thread.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class TimerWheel {
+    /**
+     * Default tick duration.
+     */
+    public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Default number of buckets.
+     */
+    public static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    private final long origin = System.nanoTime();
+    private final long tickNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+    private final int expiring;
+    private final int[] roundCounts;
+    private final long[] roundBuckets;
+    private int roundSize;
+    private long laterTick = Long.MAX_VALUE;
+    private long processedTick;
+    private int size;
+
+    /**
+     * Creates a wheel with {@link #DEFAULT_TICK_NANOS} ticks and {@link #DEFAULT_WHEEL_SIZE} buckets.
+     */
+    public TimerWheel() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * Creates a wheel.
+     *
+     * @param tickNanos tick duration
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(final long tickNanos, final int wheelSize) {
+        if (tickNanos <= 0 || wheelSize <= 0) {
+            throw new IllegalArgumentException("Tick duration and wheel size must be positive numbers");
+        }
+        this.tickNanos = tickNanos;
+        final int capacity = wheelSize == 1 ? 1 : Integer.highestOneBit(wheelSize - 1) << 1;
+        // The extra bucket holds the timeouts of the tick being expired, so that actions may cancel any of them
+        buckets = new Timeout[capacity + 1];
+        mask = capacity - 1;
+        expiring = capacity;
+        roundCounts = new int[capacity];
+        roundBuckets = new long[(capacity + Long.SIZE - 1) / Long.SIZE];
+    }
+
+    private long tick(final long nanos) {
+        return (nanos - origin) / tickNanos;
+    }
+
+    /**
+     * Schedules the timeout, rescheduling it if it is already scheduled.
+     *
+     * @param timeout  what to schedule
+     * @param deadline {@link System#nanoTime()} of expiration
+     */
+    public void schedule(final Timeout timeout, final long deadline) {
+        cancel(timeout);
+        final long tick = Math.max(tick(deadline), processedTick);
+        timeout.deadline = deadline;
+        timeout.bucket = (int) (tick & mask);
+        // a timeout of a later round is counted when its bucket is passed and it is scheduled again
+        timeout.thisRound = tick - processedTick < expiring;
+        if (timeout.thisRound) {
+            if (roundCounts[timeout.bucket]++ == 0) {
+                roundBuckets[timeout.bucket / Long.SIZE] |= 1L << timeout.bucket;
+            }
+            roundSize++;
+        } else {
+            laterTick = Math.min(laterTick, tick);
+        }
+        timeout.next = buckets[timeout.bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[timeout.bucket] = timeout;
+        size++;
+    }
+
+    /**
+     * Cancels the timeout if it is scheduled.
+     *
+     * @param timeout what to cancel
+     */
+    public void cancel(final Timeout timeout) {
+        if (!timeout.isScheduled()) {
+            return;
+        }
+        if (timeout.thisRound) {
+            timeout.thisRound = false;
+            if (--roundCounts[timeout.bucket] == 0) {
+                roundBuckets[timeout.bucket / Long.SIZE] &= ~(1L << timeout.bucket);
+            }
+            roundSize--;
+        }
+        if (timeout.prev == null) {
+            buckets[timeout.bucket] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+        size--;
+        if (size == roundSize) {
+            laterTick = Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Removes expired timeouts of the passed ticks and passes them to the action.
+     *
+     * @param now    current {@link System#nanoTime()}
+     * @param action called for every expired timeout after it is removed,
+     *               may schedule and cancel any timeouts, including the ones expiring in the same tick
+     * @return number of expired timeouts
+     */
+    public int expire(final long now, final Consumer<Timeout> action) {
+        final long nowTick = tick(now);
+        int expired = 0;
+        for (long t = Math.max(processedTick, nowTick - expiring); t < nowTick; t++) {
+            processedTick = t + 1;
+            final int bucket = (int) (t & mask);
+            buckets[expiring] = buckets[bucket];
+            buckets[bucket] = null;
+            roundSize -= roundCounts[bucket];
+            roundCounts[bucket] = 0;
+            roundBuckets[bucket / Long.SIZE] &= ~(1L << bucket);
+            for (Timeout timeout = buckets[expiring]; timeout != null; timeout = timeout.next) {
+                timeout.bucket = expiring;
+                timeout.thisRound = false;
+            }
+            Timeout timeout;
+            while ((timeout = buckets[expiring]) != null) {
+                cancel(timeout);
+                if (timeout.deadline - now <= 0) {
+                    action.accept(timeout);
+                    expired++;
+                } else {
+                    schedule(timeout, timeout.deadline);
+                }
+            }
+        }
+        processedTick = Math.max(processedTick, nowTick);
+        return expired;
+    }
+
+    /**
+     * Returns the time until the next tick with timeouts due is checked.
+     *
+     * @param now current {@link System#nanoTime()}
+     * @return nanoseconds to wait or {@code -1} if nothing is scheduled
+     */
+    public long nanosUntilNext(final long now) {
+        if (size == 0) {
+            return -1;
+        }
+        final long tick;
+        if (roundSize > 0) {
+            final int from = (int) (processedTick & mask);
+            tick = processedTick + ((nextRoundBucket(from) - from) & mask);
+        } else {
+            // timeouts of later rounds are at least a round away, the bound may be left by one that is gone
+            tick = Math.max(laterTick, processedTick + expiring);
+        }
+        return Math.max(0, origin + (tick + 1) * tickNanos - now);
+    }
+
+    /**
+     * Returns the first bucket holding timeouts of the current round, starting from the given one and wrapping around.
+     */
+    private int nextRoundBucket(final int from) {
+        int word = from / Long.SIZE;
+        long bits = roundBuckets[word] & (-1L << from);
+        for (int i = 0; i <= roundBuckets.length; i++) {
+            if (bits != 0) {
+                return word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+            }
+            word = word + 1 == roundBuckets.length ? 0 : word + 1;
+            bits = roundBuckets[word];
+        }
+        throw new AssertionError("No timeouts of the current round");
+    }
+
+    /**
+     * Returns the number of scheduled timeouts.
+     *
+     * @return number of timeouts
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A node of the wheel. Extend it to attach data to a deadline.
+     */
+    public static class Timeout {
+        private long deadline;
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private boolean thisRound;
+
+        /**
+         * Checks if the timeout is scheduled.
+         *
+         * @return <var>true</var> if and only if the timeout is in a wheel
+         */
+        public boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /**
+         * Returns the deadline of the timeout.
+         *
+         * @return {@link System#nanoTime()} of expiration
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+}
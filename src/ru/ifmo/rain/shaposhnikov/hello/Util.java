@@ -10,14 +10,20 @@ import java.io.InputStreamReader;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 import java.util.regex.Matcher;
@@ -40,7 +46,7 @@ public class Util {
     public static final Charset CHARSET = StandardCharsets.UTF_8;
 
     /**
-     * Timeout for {@link java.nio.channels.Selector} and {@link DatagramSocket} of clients
+     * Initial retransmission timeout of clients, see {@link RttEstimator}
      */
     public static final int TIMEOUT_MILLISECONDS = 300;
 
@@ -54,6 +60,11 @@ public class Util {
      */
     public static final int TIMEOUT_COEFFICIENT_SECONDS = 1000;
 
+    /**
+     * Maximal number of {@link Thread#onSpinWait()} calls between polls of a selector.
+     */
+    private static final int MAX_SPIN_BACKOFF = 64;
+
     /**
      * Parse integer argument
      *
@@ -93,13 +104,31 @@ public class Util {
                                final byte[] request,
                                final SocketAddress address,
                                final Consumer<DatagramChannel> close) {
+        return send(channel, ByteBuffer.wrap(request), address, close);
+    }
+
+    /**
+     * Sends the remaining bytes of the buffer on passed address.
+     *
+     * @param channel {@link DatagramChannel} from which we are sending
+     * @param request request data, its position is not changed
+     * @param address where to send
+     * @param close   {@link Consumer} channel closing function in case of error
+     * @return <var>true</var> if and only if the sending was successful, otherwise <var>false</var>.
+     */
+    public static boolean send(final DatagramChannel channel,
+                               final ByteBuffer request,
+                               final SocketAddress address,
+                               final Consumer<DatagramChannel> close) {
         try {
-            channel.send(ByteBuffer.wrap(request), address);
-            System.out.println("Send: " + new String(request, CHARSET));
+            final int position = request.position();
+            channel.send(request, address);
+            request.position(position);
+            Log.debug("Send: ", request);
             return true;
         } catch (final IOException e) {
             close.accept(channel);
-            System.err.println("Error during sending: " + e.getMessage());
+            Log.error("Error during sending: " + e.getMessage());
             return false;
         }
     }
@@ -116,15 +145,29 @@ public class Util {
                                         final ByteBuffer buffer,
                                         final Consumer<DatagramChannel> close) {
         try {
-            System.out.println("Receive: " + new String(buffer.array(), CHARSET));
-            return channel.receive(buffer);
+            final int position = buffer.position();
+            final SocketAddress address = channel.receive(buffer);
+            if (address != null && Log.isEnabled(Log.Level.DEBUG)) {
+                Log.debug("Receive: ", buffer.duplicate().flip().position(position));
+            }
+            return address;
         } catch (final IOException e) {
             close.accept(channel);
-            System.err.println("Error during receiving: " + e.getMessage());
+            Log.error("Error during receiving: " + e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Decodes the remaining bytes of the buffer without changing its position.
+     *
+     * @param buffer data to decode
+     * @return decoded {@link String}
+     */
+    public static String toString(final ByteBuffer buffer) {
+        return CHARSET.decode(buffer.duplicate()).toString();
+    }
+
     /**
      * Gets data from the channel. Data is read until the first 0 byte or until the {@link ByteBuffer#limit()}.
      *
@@ -165,11 +208,11 @@ public class Util {
         }
         try (final HelloServer server = serverType.get()) {
             server.start(serverContext.getPort(), serverContext.getThreads());
-            System.out.println("The server was started");
+            Log.info("The server was started");
             try (final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
                 reader.readLine();
             } catch (final IOException e) {
-                System.err.println("Error during reading from the console");
+                Log.error("Error during reading from the console");
             }
         }
     }
@@ -183,11 +226,70 @@ public class Util {
         try {
             return Selector.open();
         } catch (final IOException e) {
-            System.err.println("Error during opening selector: " + e.getMessage());
+            Log.error("Error during opening selector: " + e.getMessage());
             return null;
         }
     }
 
+    /**
+     * Waits for ready keys. The selector is polled with {@link Selector#selectNow()} for up to <var>spinNanos</var>,
+     * backing off with {@link Thread#onSpinWait()} between polls, and then the thread blocks in {@link Selector#select(long)}.
+     * Polling consumes {@link Selector#wakeup()} calls, so a thread waking the selector must also make <var>woken</var> true.
+     *
+     * @param selector      selector to wait on
+     * @param timeoutMillis timeout of the blocking select, {@code 0} to wait indefinitely
+     * @param spinNanos     time to poll before blocking, {@code 0} to block right away
+     * @param woken         checked after every poll, stops waiting when true
+     * @return number of keys updated
+     * @throws IOException if an I/O error occurs
+     */
+    public static int select(final Selector selector,
+                             final long timeoutMillis,
+                             final long spinNanos,
+                             final BooleanSupplier woken) throws IOException {
+        return select(selector, timeoutMillis, spinNanos, woken, null);
+    }
+
+    /**
+     * Waits for ready keys as {@link #select(Selector, long, long, BooleanSupplier)} does, but passes them to
+     * <var>action</var> as {@link Selector#select(Consumer, long)} does, so that selecting allocates
+     * neither an iterator nor an entry of the selected-key set.
+     *
+     * @param selector      selector to wait on
+     * @param timeoutMillis timeout of the blocking select, {@code 0} to wait indefinitely
+     * @param spinNanos     time to poll before blocking, {@code 0} to block right away
+     * @param woken         checked after every poll, stops waiting when true
+     * @param action        called for every ready key, <var>null</var> to add them to the selected-key set
+     * @return number of keys updated
+     * @throws IOException if an I/O error occurs
+     */
+    public static int select(final Selector selector,
+                             final long timeoutMillis,
+                             final long spinNanos,
+                             final BooleanSupplier woken,
+                             final Consumer<SelectionKey> action) throws IOException {
+        if (spinNanos > 0) {
+            final long limit = timeoutMillis > 0 ? Math.min(spinNanos, TimeUnit.MILLISECONDS.toNanos(timeoutMillis)) : spinNanos;
+            final long start = System.nanoTime();
+            for (int attempt = 0; ; attempt++) {
+                final int ready = action == null ? selector.selectNow() : selector.selectNow(action);
+                if (ready > 0 || woken.getAsBoolean()) {
+                    return ready;
+                }
+                if (System.nanoTime() - start >= limit) {
+                    break;
+                }
+                for (int i = Math.min(attempt, MAX_SPIN_BACKOFF); i > 0; i--) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        if (action == null) {
+            return timeoutMillis > 0 ? selector.select(timeoutMillis) : selector.select();
+        }
+        return timeoutMillis > 0 ? selector.select(action, timeoutMillis) : selector.select(action);
+    }
+
     /**
      * Attempts to close an object that implements an {@link Closeable} interface.
      *
@@ -200,7 +302,7 @@ public class Util {
         try {
             closeable.close();
         } catch (final IOException e) {
-            System.err.println("Error during closing: " + e.getMessage());
+            Log.error("Error during closing: " + e.getMessage());
         }
     }
 
@@ -217,7 +319,37 @@ public class Util {
         try {
             executorService.awaitTermination(Util.AWAITING_TIME_SECONDS, TimeUnit.SECONDS);
         } catch (final InterruptedException e) {
-            System.err.println("Error during terminate executor services: " + e.getMessage());
+            Log.error("Error during terminate executor services: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maps a source address to one of the workers, the same address always to the same worker.
+     *
+     * @param address source of a datagram
+     * @param count   number of workers
+     * @return index of the worker in {@code [0, count)}
+     */
+    public static int shard(final SocketAddress address, final int count) {
+        final int hash = address.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), count);
+    }
+
+    /**
+     * Creates an {@link ExecutorService} that starts a new virtual thread for each task.
+     * Falls back to a fixed pool of platform threads with a bounded queue when virtual threads are not available,
+     * so that a burst of tasks neither starts a thread per task nor queues without bound.
+     *
+     * @param threads  number of platform threads of the fallback
+     * @param capacity number of tasks waiting for a platform thread, the excess is rejected
+     * @return created executor
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(final int threads, final int capacity) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            Log.error("Virtual threads are not available, using " + threads + " platform threads");
+            return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(capacity));
         }
     }
 
@@ -234,7 +366,7 @@ public class Util {
         }
         clientType.get().run(clientContext.getHost(), clientContext.getPort(),
                 clientContext.getPrefix(), clientContext.getThreads(), clientContext.getRequests());
-        System.out.println("The client was started");
+        Log.info("The client was started");
     }
 
     /**
@@ -282,7 +414,7 @@ public class Util {
         public static ServerContext parseServerArguments(final String[] args) {
             Objects.requireNonNull(args);
             if (args.length != 2) {
-                System.err.println("Expected 2 arguments");
+                Log.error("Expected 2 arguments");
                 return null;
             }
             final int port = Util.parseIntegerArgument(args[0]);
@@ -373,7 +505,7 @@ public class Util {
         public static ClientContext parseClientArguments(final String[] args) {
             Objects.requireNonNull(args);
             if (args.length != 5) {
-                System.err.println("Expected 5 arguments");
+                Log.error("Expected 5 arguments");
                 return null;
             }
             final String host = args[0];
@@ -382,11 +514,11 @@ public class Util {
             final int threads = Util.parseIntegerArgument(args[3]);
             final int requests = Util.parseIntegerArgument(args[4]);
             if (threads < 1) {
-                System.err.println("Working threads count must be a positive number");
+                Log.error("Working threads count must be a positive number");
                 return null;
             }
             if (requests < 1) {
-                System.err.println("Requests count must be a positive number");
+                Log.error("Requests count must be a positive number");
                 return null;
             }
             return new ClientContext(host, port, prefix, threads, requests);
@@ -399,6 +531,7 @@ public class Util {
      */
     public static class ExchangeDatagramPacket {
         private final byte[] buffer;
+        private final ByteBuffer view;
         private final DatagramPacket datagramPacket;
 
         /**
@@ -408,6 +541,7 @@ public class Util {
          */
         ExchangeDatagramPacket(final int bufferSize) {
             buffer = new byte[bufferSize];
+            view = ByteBuffer.wrap(buffer);
             datagramPacket = new DatagramPacket(buffer, bufferSize);
         }
 
@@ -458,6 +592,46 @@ public class Util {
             return datagramPacket;
         }
 
+        /**
+         * Receives a response into the packet buffer.
+         *
+         * @param socket {@link DatagramSocket} to get response
+         * @return received data, valid until the next receive, or <var>null</var> if the receipt failed
+         */
+        public ByteBuffer receiveBytes(final DatagramSocket socket) {
+            try {
+                datagramPacket.setData(buffer, 0, buffer.length);
+                socket.receive(datagramPacket);
+                Log.debug("Receive: ", buffer, 0, datagramPacket.getLength());
+                return view.limit(datagramPacket.getLength()).position(0);
+            } catch (final SocketTimeoutException e) {
+                Log.debug("Receive timeout");
+                return null;
+            } catch (final IOException e) {
+                Log.error("Error during receiving :" + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Sends the remaining bytes of a buffer backed by an array.
+         *
+         * @param request what to send, its position is not changed
+         * @param socket  where to send
+         * @return <var>true</var> if and only if the sending was successful, otherwise <var>false</var>.
+         */
+        public boolean send(final ByteBuffer request, final DatagramSocket socket) {
+            try {
+                datagramPacket.setData(request.array(), request.arrayOffset() + request.position(), request.remaining());
+                socket.send(datagramPacket);
+                Log.debug("Send: ", request);
+                return true;
+            } catch (final IOException e) {
+                Log.error("Error during sending: " + e.getMessage());
+                return false;
+            }
+        }
+
         /**
          * Returns a response
          *
@@ -467,11 +641,10 @@ public class Util {
             try {
                 datagramPacket.setData(buffer, 0, buffer.length);
                 socket.receive(datagramPacket);
-                final String response = getData();
-                System.out.println("Receive: " + response);
-                return response;
+                Log.debug("Receive: ", datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength());
+                return getData();
             } catch (final IOException e) {
-                System.err.println("Error during receiving :" + e.getMessage());
+                Log.error("Error during receiving :" + e.getMessage());
                 return "";
             }
         }
@@ -487,9 +660,9 @@ public class Util {
                 datagramPacket.setData(request.getBytes(CHARSET));
                 datagramPacket.setLength(datagramPacket.getData().length);
                 socket.send(datagramPacket);
-                System.out.println("Send: " + getData());
+                Log.debug("Send: ", datagramPacket.getData(), datagramPacket.getOffset(), datagramPacket.getLength());
             } catch (final IOException e) {
-                System.err.println("Error during sending: " + e.getMessage());
+                Log.error("Error during sending: " + e.getMessage());
             }
         }
 
@@ -0,0 +1,74 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a consumer of a {@link RingBuffer} waits for the next element.
+ * Strategies trade the latency of the handoff for the CPU burnt while idle.
+ *
+ * @author Boris Shaposhnikov
+ */
+public enum WaitStrategy {
+    /**
+     * Spins forever: the lowest latency, a core per waiting thread.
+     */
+    BUSY_SPIN {
+        @Override
+        void idle(final int attempt) {
+            Thread.onSpinWait();
+        }
+    },
+    /**
+     * Spins for a while, then yields the processor between attempts.
+     */
+    YIELDING {
+        @Override
+        void idle(final int attempt) {
+            if (attempt < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+    },
+    /**
+     * Spins, yields, then sleeps for short periods: little CPU when idle, latency up to the sleep period.
+     */
+    SLEEPING {
+        @Override
+        void idle(final int attempt) {
+            if (attempt < SPINS) {
+                Thread.onSpinWait();
+            } else if (attempt < 2 * SPINS) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(SLEEP_NANOS);
+            }
+        }
+    },
+    /**
+     * Spins for a while, then blocks until a producer signals: no CPU when idle,
+     * producers pay for the signal only while a consumer is blocked.
+     */
+    BLOCKING {
+        @Override
+        void idle(final int attempt) {
+            Thread.onSpinWait();
+        }
+    };
+
+    /**
+     * Number of attempts a strategy spins before backing off.
+     */
+    static final int SPINS = 100;
+
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    /**
+     * Waits after an unsuccessful attempt to take an element.
+     *
+     * @param attempt number of unsuccessful attempts before
+     */
+    abstract void idle(int attempt);
+}
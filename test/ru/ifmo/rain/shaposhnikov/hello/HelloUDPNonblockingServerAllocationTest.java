@@ -0,0 +1,103 @@
+package ru.ifmo.rain.shaposhnikov.hello;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Checks that {@link HelloUDPNonblockingServer} allocates nothing per datagram once it is warmed up.
+ * <p>
+ * The bytes allocated by the threads of the server are measured around a run of datagrams.
+ * A single object per datagram would take at least 16 bytes each, so the server must allocate
+ * less than one byte per datagram: a constant amount, such as a lazily initialized structure, is tolerated.
+ *
+ * @author Boris Shaposhnikov
+ */
+public class HelloUDPNonblockingServerAllocationTest {
+    private static final int THREADS = 2;
+    private static final int WARMUP = 50_000;
+    private static final int DATAGRAMS = 20_000;
+
+    private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static HelloUDPNonblockingServer server;
+    private static long[] serverThreads;
+    private static DatagramChannel client;
+
+    @BeforeClass
+    public static void start() throws IOException {
+        Assert.assertTrue("Thread allocation counting is not supported", THREAD_BEAN.isThreadAllocatedMemorySupported());
+        THREAD_BEAN.setThreadAllocatedMemoryEnabled(true);
+
+        final int port;
+        try (final DatagramSocket socket = new DatagramSocket()) {
+            port = socket.getLocalPort();
+        }
+        final Set<Long> before = threadIds();
+        server = new HelloUDPNonblockingServer();
+        server.start(port, THREADS);
+        serverThreads = Arrays.stream(THREAD_BEAN.getAllThreadIds()).filter(id -> !before.contains(id)).toArray();
+
+        client = DatagramChannel.open();
+        client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    @AfterClass
+    public static void close() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    @Test
+    public void steadyStateAllocatesNothingPerDatagram() throws IOException {
+        final ByteBuffer request = ByteBuffer.allocateDirect(64);
+        final ByteBuffer response = ByteBuffer.allocateDirect(128);
+        exchange(request, response, WARMUP);
+
+        final long allocated = allocatedByServer();
+        exchange(request, response, DATAGRAMS);
+        final long perRun = allocatedByServer() - allocated;
+
+        Assert.assertTrue("Server allocated " + perRun + " bytes for " + DATAGRAMS + " datagrams",
+                perRun < DATAGRAMS);
+    }
+
+    private static void exchange(final ByteBuffer request, final ByteBuffer response, final int datagrams)
+            throws IOException {
+        final byte[] prefix = "request_".getBytes(Util.CHARSET);
+        for (int i = 0; i < datagrams; i++) {
+            request.clear();
+            request.put(prefix).put((byte) ('0' + i % 10));
+            request.flip();
+            client.write(request);
+            response.clear();
+            client.read(response);
+            Assert.assertEquals("Hello, request_".length() + 1, response.position());
+        }
+    }
+
+    private static long allocatedByServer() {
+        return Arrays.stream(THREAD_BEAN.getThreadAllocatedBytes(serverThreads)).filter(bytes -> bytes > 0).sum();
+    }
+
+    private static Set<Long> threadIds() {
+        return Arrays.stream(THREAD_BEAN.getAllThreadIds()).boxed().collect(Collectors.toSet());
+    }
+}